@@ -0,0 +1,143 @@
+package org.openstatic.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.json.*;
+
+/*
+    Synthetic records for the benchmarks, always the same for the same settings.
+
+    Every record has an id, a country and a score at the top (for filters),
+    then width fields of mixed types and a small array on each level, nested
+    depth levels deep through a "child" key.
+
+    Can also be run on its own to write a test file for timing the command line:
+    DataGenerator <file> [rows] [depth] [width] [array|object|ndjson]
+*/
+public class DataGenerator
+{
+    public static final String FORMAT_ARRAY = "array";
+    public static final String FORMAT_OBJECT = "object";
+    public static final String FORMAT_NDJSON = "ndjson";
+
+    private static final String[] COUNTRIES = { "US", "CA", "MX", "GB", "DE", "JP" };
+
+    private int depth;
+    private int width;
+    private Random random;
+
+    public DataGenerator(int depth, int width)
+    {
+        this.depth = depth;
+        this.width = width;
+        this.random = new Random(42);
+    }
+
+    public JSONObject record(int id)
+    {
+        JSONObject record = level(this.depth);
+        record.put("id", id);
+        record.put("country", COUNTRIES[this.random.nextInt(COUNTRIES.length)]);
+        record.put("score", this.random.nextInt(1000));
+        return record;
+    }
+
+    private JSONObject level(int remaining)
+    {
+        JSONObject jo = new JSONObject();
+        for (int f = 0; f < this.width; f++)
+        {
+            String key = "f" + String.valueOf(f);
+            switch (f % 4)
+            {
+                case 0:
+                    jo.put(key, this.random.nextInt(100000));
+                    break;
+                case 1:
+                    jo.put(key, "value " + String.valueOf(this.random.nextInt(1000)));
+                    break;
+                case 2:
+                    jo.put(key, this.random.nextDouble() * 1000);
+                    break;
+                default:
+                    jo.put(key, this.random.nextBoolean());
+            }
+        }
+        JSONArray tags = new JSONArray();
+        for (int t = 0; t < 3; t++)
+            tags.put("tag" + String.valueOf(this.random.nextInt(20)));
+        jo.put("tags", tags);
+        if (remaining > 1)
+            jo.put("child", level(remaining - 1));
+        return jo;
+    }
+
+    public JSONArray records(int rows)
+    {
+        JSONArray array = new JSONArray();
+        for (int r = 0; r < rows; r++)
+            array.put(record(r));
+        return array;
+    }
+
+    // A root object of keyed records, the shape JSONRoller pivots
+    public JSONObject keyedRecords(int rows)
+    {
+        JSONObject root = new JSONObject();
+        for (int r = 0; r < rows; r++)
+            root.put("record" + String.valueOf(r), record(r));
+        return root;
+    }
+
+    public String text(int rows, String format)
+    {
+        if (FORMAT_OBJECT.equals(format))
+            return keyedRecords(rows).toString();
+        if (FORMAT_NDJSON.equals(format))
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int r = 0; r < rows; r++)
+            {
+                sb.append(record(r).toString());
+                sb.append('\n');
+            }
+            return sb.toString();
+        }
+        return records(rows).toString();
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            System.err.println("DataGenerator <file> [rows] [depth] [width] [array|object|ndjson]");
+            System.exit(1);
+        }
+        int rows = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+        int depth = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+        int width = (args.length > 3) ? Integer.parseInt(args[3]) : 8;
+        String format = (args.length > 4) ? args[4] : FORMAT_NDJSON;
+        DataGenerator generator = new DataGenerator(depth, width);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(Paths.get(args[0])), StandardCharsets.UTF_8)))
+        {
+            if (FORMAT_NDJSON.equals(format))
+            {
+                // one record at a time so big files don't have to fit in memory
+                for (int r = 0; r < rows; r++)
+                {
+                    out.write(generator.record(r).toString());
+                    out.write('\n');
+                }
+            } else {
+                out.write(generator.text(rows, format));
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.openstatic.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.*;
+import org.openjdk.jmh.annotations.*;
+import org.openstatic.JSONRoller;
+
+// JSONRoller.filterData() with a plain, a numeric and a nested filter
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark
+{
+    @Param({ "country=US", "score>=500,country!=CA", "child.f0>50000|country=JP" })
+    public String filter;
+
+    @Param({ "4" })
+    public int depth;
+
+    @Param({ "8" })
+    public int width;
+
+    @Param({ "10000" })
+    public int rows;
+
+    private JSONArray records;
+
+    @Setup
+    public void setUp()
+    {
+        this.records = new DataGenerator(this.depth, this.width).records(this.rows);
+    }
+
+    @Benchmark
+    public JSONArray filterData()
+    {
+        return JSONRoller.filterData(this.records, this.filter);
+    }
+}
@@ -0,0 +1,60 @@
+package org.openstatic.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openstatic.ColumnDictionary;
+import org.openstatic.JSONRoller;
+import org.openstatic.RowFlattener;
+
+/*
+    Turning records into table rows. JSONArrayFlatten() builds the whole table
+    with named columns, RowFlattener is what the table builder uses per record.
+    Run with -prof gc to see the allocation per operation.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlattenBenchmark
+{
+    @Param({ "1", "4", "8" })
+    public int depth;
+
+    @Param({ "8", "64" })
+    public int width;
+
+    @Param({ "1000" })
+    public int rows;
+
+    private JSONArray records;
+    private RowFlattener flattener;
+
+    @Setup
+    public void setUp()
+    {
+        this.records = new DataGenerator(this.depth, this.width).records(this.rows);
+        this.flattener = new RowFlattener(new ColumnDictionary());
+    }
+
+    @Benchmark
+    public List<String[]> JSONArrayFlatten() throws Exception
+    {
+        return JSONRoller.JSONArrayFlatten(this.records);
+    }
+
+    @Benchmark
+    public void rowFlattener(Blackhole blackhole) throws Exception
+    {
+        for (int r = 0; r < this.records.length(); r++)
+        {
+            this.flattener.flatten(this.records.get(r), r, null);
+            blackhole.consume(this.flattener.getPairs());
+        }
+    }
+}
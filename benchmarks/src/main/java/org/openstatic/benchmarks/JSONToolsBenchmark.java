@@ -0,0 +1,46 @@
+package org.openstatic.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.*;
+import org.openjdk.jmh.annotations.*;
+import org.openstatic.JSONTools;
+
+// Merging and diffing two records of the same shape but different values
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONToolsBenchmark
+{
+    @Param({ "1", "4", "8" })
+    public int depth;
+
+    @Param({ "8", "64" })
+    public int width;
+
+    private JSONObject a;
+    private JSONObject b;
+
+    @Setup
+    public void setUp()
+    {
+        DataGenerator generator = new DataGenerator(this.depth, this.width);
+        this.a = generator.record(0);
+        this.b = generator.record(1);
+    }
+
+    @Benchmark
+    public JSONObject mergeJSONObjects()
+    {
+        return JSONTools.mergeJSONObjects(this.a, this.b);
+    }
+
+    @Benchmark
+    public JSONObject diffJSONObjects()
+    {
+        return JSONTools.diffJSONObjects(this.a, this.b);
+    }
+}
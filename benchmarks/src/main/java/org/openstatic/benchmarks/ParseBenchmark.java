@@ -0,0 +1,43 @@
+package org.openstatic.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.*;
+import org.openjdk.jmh.annotations.*;
+import org.openstatic.JSONRoller;
+
+// JSONRoller.readJSONData() on a root array, a root object of records and NDJSON
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark
+{
+    @Param({ DataGenerator.FORMAT_ARRAY, DataGenerator.FORMAT_OBJECT, DataGenerator.FORMAT_NDJSON })
+    public String format;
+
+    @Param({ "1", "4", "8" })
+    public int depth;
+
+    @Param({ "8" })
+    public int width;
+
+    @Param({ "1000" })
+    public int rows;
+
+    private String text;
+
+    @Setup
+    public void setUp()
+    {
+        this.text = new DataGenerator(this.depth, this.width).text(this.rows, this.format);
+    }
+
+    @Benchmark
+    public JSONArray readJSONData()
+    {
+        return JSONRoller.readJSONData(this.text);
+    }
+}
@@ -0,0 +1,41 @@
+package org.openstatic.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.*;
+import org.openjdk.jmh.annotations.*;
+import org.openstatic.JSONRoller;
+
+// JSONRoller.pivotJSONObject() on a root object holding one keyed object per record
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PivotBenchmark
+{
+    @Param({ "1", "4", "8" })
+    public int depth;
+
+    @Param({ "8" })
+    public int width;
+
+    @Param({ "1000" })
+    public int rows;
+
+    private JSONObject keyedRecords;
+
+    @Setup
+    public void setUp()
+    {
+        this.keyedRecords = new DataGenerator(this.depth, this.width).keyedRecords(this.rows);
+    }
+
+    @Benchmark
+    public List<JSONObject> pivotJSONObject() throws Exception
+    {
+        return JSONRoller.pivotJSONObject(new JSONObject(), 0, this.keyedRecords);
+    }
+}
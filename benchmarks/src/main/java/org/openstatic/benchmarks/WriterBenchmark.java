@@ -0,0 +1,109 @@
+package org.openstatic.benchmarks;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openstatic.CSVTableWriter;
+import org.openstatic.HTMLTableWriter;
+import org.openstatic.JSONRoller;
+import org.openstatic.JSONTableWriter;
+import org.openstatic.MarkdownTableWriter;
+import org.openstatic.OutputData;
+import org.openstatic.TSVTableWriter;
+import org.openstatic.TableWriter;
+import org.openstatic.UTF8ChannelWriter;
+
+/*
+    Every output format writing the same flattened table to somewhere that
+    discards it. write() is the OutputData path for a whole table through an
+    OutputStreamWriter, stream() the TableWriter path the command line uses,
+    row by row into a UTF8ChannelWriter.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriterBenchmark
+{
+    @Param({ "csv", "tsv", "json", "markdown", "html" })
+    public String format;
+
+    @Param({ "2" })
+    public int depth;
+
+    @Param({ "8" })
+    public int width;
+
+    @Param({ "1000" })
+    public int rows;
+
+    private List<String[]> table;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        this.table = JSONRoller.JSONArrayFlatten(new DataGenerator(this.depth, this.width).records(this.rows));
+    }
+
+    @Benchmark
+    public void write() throws Exception
+    {
+        // writeMarkdown() closes the writer, so every call gets a new one
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8));
+        switch (this.format)
+        {
+            case "csv":
+                OutputData.writeCSV(pw, this.table);
+                break;
+            case "tsv":
+                OutputData.writeTSV(pw, this.table);
+                break;
+            case "json":
+                OutputData.writeJSON(pw, this.table);
+                break;
+            case "markdown":
+                OutputData.writeMarkdown(pw, this.table);
+                break;
+            default:
+                OutputData.writeHTML("benchmark", pw, this.table);
+        }
+        pw.flush();
+    }
+
+    @Benchmark
+    public void stream() throws Exception
+    {
+        PrintWriter pw = new PrintWriter(UTF8ChannelWriter.channel(Channels.newChannel(OutputStream.nullOutputStream()), UTF8ChannelWriter.DEFAULT_BUFFER_SIZE, null));
+        TableWriter writer;
+        switch (this.format)
+        {
+            case "csv":
+                writer = new CSVTableWriter(pw);
+                break;
+            case "tsv":
+                writer = new TSVTableWriter(pw);
+                break;
+            case "json":
+                writer = new JSONTableWriter(pw);
+                break;
+            case "markdown":
+                writer = new MarkdownTableWriter(pw);
+                break;
+            default:
+                writer = new HTMLTableWriter("benchmark", pw);
+        }
+        writer.writeHeader(this.table.get(0));
+        for (int r = 1; r < this.table.size(); r++)
+            writer.writeRow(this.table.get(r));
+        writer.finish();
+        writer.close();
+    }
+}
@@ -0,0 +1,102 @@
+package org.openstatic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.*;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.RFC4180ParserBuilder;
+import com.opencsv.exceptions.CsvMalformedLineException;
+import com.opencsv.exceptions.CsvMultilineLimitBrokenException;
+import com.opencsv.exceptions.CsvValidationException;
+
+/*
+    Pulls rows out of a CSV stream one at a time. The first row is the header,
+    every row after it is handed out as soon as opencsv has parsed it so only
+    the current row is ever held in memory.
+
+    Rows that opencsv can't parse (a quoted field running past the multiline
+    limit or the end of the file for example) are logged and skipped.
+*/
+public class CSVRecordReader implements Closeable
+{
+    public static final int DEFAULT_MULTILINE_LIMIT = 100;
+
+    private CSVReader reader;
+    private String[] header;
+    private long rowNumber;
+
+    public CSVRecordReader(Reader reader, char separator, int multilineLimit) throws IOException
+    {
+        this.reader = new CSVReaderBuilder(reader)
+                            .withCSVParser(new RFC4180ParserBuilder().withQuoteChar('"').withSeparator(separator).build())
+                            .withMultilineLimit(multilineLimit)
+                            .withKeepCarriageReturn(false)
+                            .build();
+        this.header = nextRow();
+    }
+
+    // The column names from the first row, null if the stream was empty
+    public String[] getHeader()
+    {
+        return this.header;
+    }
+
+    // Number of rows read so far, header included
+    public long getRowNumber()
+    {
+        return this.rowNumber;
+    }
+
+    // Returns the next raw row, or null once the stream is exhausted
+    public String[] nextRow() throws IOException
+    {
+        Stats.PARSE.start();
+        try
+        {
+            String[] row = readRow();
+            if (row != null && this.header != null)
+                Stats.PARSE.countRecords(1);
+            return row;
+        } finally {
+            Stats.PARSE.stop();
+        }
+    }
+
+    private String[] readRow() throws IOException
+    {
+        while (true)
+        {
+            try
+            {
+                String[] row = this.reader.readNext();
+                if (row != null)
+                    this.rowNumber++;
+                return row;
+            } catch (CsvValidationException | CsvMalformedLineException | CsvMultilineLimitBrokenException csvEx) {
+                this.rowNumber++;
+                JSONRoller.logIt("Row Error(" + String.valueOf(this.rowNumber) + "): " + csvEx.getLocalizedMessage());
+            }
+        }
+    }
+
+    // A row keyed by the header, fails if the row is wider than the header
+    public static JSONObject toJSONObject(String[] header, String[] row)
+    {
+        JSONObject rowObject = new JSONObject();
+        for(int i = 0; i < row.length; i++)
+        {
+            rowObject.put(header[i], row[i]);
+        }
+        return rowObject;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.reader.close();
+    }
+}
@@ -0,0 +1,44 @@
+package org.openstatic;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+public class CSVTableWriter implements TableWriter
+{
+    private DelimitedWriter out;
+
+    public CSVTableWriter(PrintWriter pw)
+    {
+        this.out = DelimitedWriter.csv(pw);
+    }
+
+    @Override
+    public void writeHeader(String[] columns) throws IOException
+    {
+        this.out.writeLine(columns);
+    }
+
+    @Override
+    public void writeRow(String[] row) throws IOException
+    {
+        this.out.writeLine(row);
+    }
+
+    @Override
+    public int getPendingChars()
+    {
+        return this.out.getPending();
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.out.close();
+    }
+}
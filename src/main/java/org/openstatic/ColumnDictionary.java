@@ -0,0 +1,179 @@
+package org.openstatic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+    Every column a table has seen, numbered. A column is found from its parent
+    column and the key or array position below it, so the flatten code can
+    step down a record without building a "parent.key" or "parent[n]" string
+    for every value of every row. Each column's name is built once, the first
+    time the column turns up.
+
+    Two paths that flatten to the same name (a key holding a dot for example)
+    share one id. Id 0 is the record itself and has no name.
+
+    A record that is a plain value is named after its row, "[12]". A partial
+    table only knows its own rows, so its dictionary can be told to use local
+    value names instead. Those stay apart from array positions and are given
+    their real row by renumberValues() when the partial is merged.
+
+    Not thread safe, each TableBuilder has its own.
+*/
+public class ColumnDictionary
+{
+    public static final int ROOT = 0;
+
+    // Starts the name of a plain value column numbered by a partial's own rows
+    private static final char LOCAL_VALUE = '\u0000';
+
+    private ArrayList<String> names;
+    private HashMap<String, Integer> ids;
+    private ArrayList<HashMap<String, Integer>> keyChildren;
+    private ArrayList<int[]> indexChildren;
+    private boolean[] registered;
+    private boolean localValues;
+
+    public ColumnDictionary()
+    {
+        this.names = new ArrayList<String>();
+        this.ids = new HashMap<String, Integer>();
+        this.keyChildren = new ArrayList<HashMap<String, Integer>>();
+        this.indexChildren = new ArrayList<int[]>();
+        this.registered = new boolean[64];
+        this.names.add(null);
+        this.keyChildren.add(null);
+        this.indexChildren.add(null);
+    }
+
+    // Number of ids handed out so far, ROOT included
+    public int size()
+    {
+        return this.names.size();
+    }
+
+    public String name(int id)
+    {
+        return this.names.get(id);
+    }
+
+    // The column under parent for an object key
+    public int key(int parent, String key)
+    {
+        HashMap<String, Integer> children = this.keyChildren.get(parent);
+        if (children == null)
+        {
+            children = new HashMap<String, Integer>();
+            this.keyChildren.set(parent, children);
+        }
+        Integer id = children.get(key);
+        if (id == null)
+        {
+            String parentName = this.names.get(parent);
+            id = Integer.valueOf(id((parentName == null) ? key : parentName + "." + key));
+            children.put(key, id);
+        }
+        return id.intValue();
+    }
+
+    // The column under parent for an array position
+    public int index(int parent, int position)
+    {
+        int[] children = this.indexChildren.get(parent);
+        if (children == null || position >= children.length)
+        {
+            int[] grown = new int[Math.max(position + 1, (children == null) ? 4 : children.length * 2)];
+            if (children != null)
+                System.arraycopy(children, 0, grown, 0, children.length);
+            children = grown;
+            this.indexChildren.set(parent, children);
+        }
+        if (children[position] == 0)
+        {
+            String parentName = this.names.get(parent);
+            String suffix = "[" + String.valueOf(position) + "]";
+            children[position] = id((parentName == null) ? suffix : parentName + suffix);
+        }
+        return children[position];
+    }
+
+    // Name plain values by the row within this dictionary's table, see renumberValues()
+    public void useLocalValues()
+    {
+        this.localValues = true;
+    }
+
+    // The column for a record that is a plain value, row is its position among the table's rows
+    public int value(int row)
+    {
+        if (!this.localValues)
+            return index(ROOT, row);
+        return id(LOCAL_VALUE + "[" + String.valueOf(row) + "]");
+    }
+
+    // Give the local plain value columns (and the query string columns under them) their row
+    // in a table that already has offset rows before these
+    public void renumberValues(int offset, boolean keepLocal)
+    {
+        // drop every old name before adding the new ones, a new name can be an old name of another row
+        for (int id = 1; id < this.names.size(); id++)
+        {
+            if (isLocalValue(this.names.get(id)))
+                this.ids.remove(this.names.get(id));
+        }
+        for (int id = 1; id < this.names.size(); id++)
+        {
+            String name = this.names.get(id);
+            String renumbered = renumbered(name, offset, keepLocal);
+            if (renumbered != name)
+            {
+                this.ids.put(renumbered, Integer.valueOf(id));
+                this.names.set(id, renumbered);
+            }
+        }
+    }
+
+    // Whether the name is a plain value column still named by its row within this table
+    public static boolean isLocalValue(String name)
+    {
+        return name != null && !name.isEmpty() && name.charAt(0) == LOCAL_VALUE;
+    }
+
+    // The name a column gets from renumberValues(), the same String if it isn't a local plain value
+    public static String renumbered(String name, int offset, boolean keepLocal)
+    {
+        if (!isLocalValue(name))
+            return name;
+        int end = name.indexOf(']');
+        int row = Integer.parseInt(name.substring(2, end)) + offset;
+        return (keepLocal ? String.valueOf(LOCAL_VALUE) : "") + "[" + String.valueOf(row) + name.substring(end);
+    }
+
+    // The column with this full name, for columns that arrive already flat (CSV headers)
+    public int id(String name)
+    {
+        Integer id = this.ids.get(name);
+        if (id == null)
+        {
+            id = Integer.valueOf(this.names.size());
+            this.ids.put(name, id);
+            this.names.add(name);
+            this.keyChildren.add(null);
+            this.indexChildren.add(null);
+            if (id.intValue() >= this.registered.length)
+                this.registered = Arrays.copyOf(this.registered, this.registered.length * 2);
+        }
+        return id.intValue();
+    }
+
+    // JSONRoller.registerColumn() for the column, only the first time it is used
+    public void register(int id)
+    {
+        if (!this.registered[id])
+        {
+            this.registered[id] = true;
+            JSONRoller.registerColumn(this.names.get(id));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.openstatic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/*
+    The order columns are first seen in, which is the order they come out in.
+    Names are kept in a list with a hash index beside it, so registering a
+    column that is already known costs one lookup however wide the table is.
+
+    Columns that are known up front, a CSV header or the columns asked for
+    by name, are leading columns. They come before every column found in a
+    JSON record whichever input the record came from, the way older versions
+    that read every file before flattening any of them ordered the table.
+
+    A thread reading part of the input collects its columns in a Batch
+    instead. The batch is handed over in one go once that part is merged,
+    which keeps the order the same as a single threaded read and keeps the
+    workers off the shared lock.
+*/
+public class ColumnRegistry
+{
+    private static final ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
+
+    private ArrayList<String> names;
+    private HashMap<String, Integer> positions;
+    private int leading;
+
+    public ColumnRegistry()
+    {
+        this.names = new ArrayList<String>();
+        this.positions = new HashMap<String, Integer>();
+    }
+
+    // Adds the column if it is new, to the current thread's batch if it has one
+    public void register(String name)
+    {
+        Batch batch = ColumnRegistry.batches.get();
+        if (batch != null)
+            batch.names.add(name);
+        else
+            add(name);
+    }
+
+    public void registerAll(Collection<String> names)
+    {
+        Batch batch = ColumnRegistry.batches.get();
+        if (batch != null)
+        {
+            batch.names.addAll(names);
+        } else {
+            synchronized (this)
+            {
+                names.forEach((name) -> add(name));
+            }
+        }
+    }
+
+    // Adds the columns after the leading columns so far, moving them up if they were found in a record first
+    public void registerAllLeading(Collection<String> names)
+    {
+        Batch batch = ColumnRegistry.batches.get();
+        if (batch != null)
+        {
+            batch.leadingNames.addAll(names);
+        } else {
+            synchronized (this)
+            {
+                names.forEach((name) -> addLeading(name));
+            }
+        }
+    }
+
+    private synchronized void addLeading(String name)
+    {
+        Integer position = this.positions.get(name);
+        if (position != null && position.intValue() < this.leading)
+            return;
+        if (position != null)
+            this.names.remove(position.intValue());
+        this.names.add(this.leading, name);
+        this.leading++;
+        int end = (position != null) ? position.intValue() : this.names.size() - 1;
+        for (int i = this.leading - 1; i <= end; i++)
+            this.positions.put(this.names.get(i), Integer.valueOf(i));
+    }
+
+    private synchronized void add(String name)
+    {
+        if (!this.positions.containsKey(name))
+        {
+            this.positions.put(name, Integer.valueOf(this.names.size()));
+            this.names.add(name);
+        }
+    }
+
+    // The columns given that have been registered, in registration order
+    public synchronized List<String> ordered(Collection<String> columns)
+    {
+        ArrayList<String> ordered = new ArrayList<String>();
+        for (String column : columns)
+        {
+            if (this.positions.containsKey(column))
+                ordered.add(column);
+        }
+        ordered.sort((a, b) -> Integer.compare(this.positions.get(a).intValue(), this.positions.get(b).intValue()));
+        return ordered;
+    }
+
+    public synchronized int size()
+    {
+        return this.names.size();
+    }
+
+    // Columns registered on one thread while the batch is begun, in the order they were first seen
+    public static class Batch
+    {
+        private LinkedHashSet<String> names;
+        private LinkedHashSet<String> leadingNames;
+
+        public Batch()
+        {
+            this.names = new LinkedHashSet<String>();
+            this.leadingNames = new LinkedHashSet<String>();
+        }
+
+        // Collect the current thread's registrations into this batch
+        public void begin()
+        {
+            ColumnRegistry.batches.set(this);
+        }
+
+        // Stop collecting, the current thread registers straight away again
+        public void end()
+        {
+            ColumnRegistry.batches.remove();
+        }
+
+        public Collection<String> getNames()
+        {
+            return this.names;
+        }
+
+        public Collection<String> getLeadingNames()
+        {
+            return this.leadingNames;
+        }
+    }
+}
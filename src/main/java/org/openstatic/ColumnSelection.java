@@ -0,0 +1,282 @@
+package org.openstatic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/*
+    The --columns list compiled into a trie over the column path, so the
+    flatten code can tell at every level whether a key can still lead to a
+    selected column and skip the whole subtree when it can't.
+
+    Entries are column names the way they show up in the table. Selecting an
+    object or array selects everything inside it. Glob patterns are allowed:
+
+     * "*" and "?" inside a key    user.*.country, metric_*
+     * "[*]" for any array index   items[*].sku
+*/
+public class ColumnSelection
+{
+    private Node root;
+    private ArrayList<String> exactColumns;
+
+    private ColumnSelection()
+    {
+        this.root = new Node();
+        this.exactColumns = new ArrayList<String>();
+    }
+
+    // Comma separated list of column names and patterns
+    public static ColumnSelection compile(String columns)
+    {
+        ColumnSelection selection = new ColumnSelection();
+        for (String column : columns.split(","))
+        {
+            String trimmed = column.trim();
+            if (trimmed.length() == 0)
+                continue;
+            Node node = selection.root;
+            for (Object segment : patternSegments(trimmed))
+                node = node.add(segment);
+            node.all = true;
+            if (!trimmed.contains("*") && !trimmed.contains("?"))
+                selection.exactColumns.add(trimmed);
+        }
+        selection.root.mergeGlobs();
+        return selection;
+    }
+
+    public Node getRoot()
+    {
+        return this.root;
+    }
+
+    // The entries that aren't patterns, in the order they were given
+    public List<String> getExactColumns()
+    {
+        return this.exactColumns;
+    }
+
+    // For a finished column name, such as a CSV header
+    public boolean selects(String column)
+    {
+        Node node = this.root.child(column);
+        return (node != null && node.isAll());
+    }
+
+    // Like FieldPath.segments() but "[*]" becomes ANY_INDEX and keys with * or ? become Patterns
+    private static List<Object> patternSegments(String pattern)
+    {
+        ArrayList<Object> segments = new ArrayList<Object>();
+        for (Object segment : FieldPath.segments(pattern.replace("[*]", ".\u0000.")))
+        {
+            if ("\u0000".equals(segment))
+            {
+                segments.add(Node.ANY_INDEX);
+            } else if (segment instanceof String && (((String) segment).contains("*") || ((String) segment).contains("?"))) {
+                String glob = (String) segment;
+                StringBuilder regex = new StringBuilder();
+                for (int i = 0; i < glob.length(); i++)
+                {
+                    char c = glob.charAt(i);
+                    if (c == '*')
+                        regex.append(".*");
+                    else if (c == '?')
+                        regex.append('.');
+                    else
+                        regex.append(Pattern.quote(String.valueOf(c)));
+                }
+                segments.add(Pattern.compile(regex.toString()));
+            } else {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    public static class Node
+    {
+        private static final Object ANY_INDEX = new Object();
+
+        private boolean all;
+        private HashMap<String, Node> names;
+        private HashMap<Integer, Node> indexes;
+        private ArrayList<Pattern> globs;
+        private ArrayList<Node> globNodes;
+        private Node anyIndex;
+        private Node[] alternatives;
+
+        private Node()
+        {
+        }
+
+        // When more than one pattern matches a key the walk carries on through all of them
+        private Node(ArrayList<Node> alternatives)
+        {
+            this.alternatives = alternatives.toArray(new Node[alternatives.size()]);
+            for (Node alternative : this.alternatives)
+                this.all |= alternative.all;
+        }
+
+        // True when everything from here down is selected
+        public boolean isAll()
+        {
+            return this.all;
+        }
+
+        // Where a key leads, null if nothing under it can be selected
+        public Node child(String name)
+        {
+            if (this.all)
+                return this;
+            if (name.indexOf('.') >= 0 || name.indexOf('[') >= 0)
+            {
+                // a key holding dots or brackets reads like several levels of the column name
+                Node node = this;
+                for (Object segment : FieldPath.segments(name))
+                {
+                    node = (segment instanceof Integer) ? node.index(((Integer) segment).intValue()) : node.step((String) segment);
+                    if (node == null)
+                        return null;
+                }
+                return node;
+            }
+            return step(name);
+        }
+
+        // Where an array position leads, null if nothing under it can be selected
+        public Node index(int position)
+        {
+            if (this.all)
+                return this;
+            if (this.alternatives != null)
+            {
+                ArrayList<Node> found = new ArrayList<Node>();
+                for (Node alternative : this.alternatives)
+                    addIfFound(found, alternative.index(position));
+                return pick(found);
+            }
+            Node exact = (this.indexes == null) ? null : this.indexes.get(Integer.valueOf(position));
+            return (exact != null) ? exact : this.anyIndex;
+        }
+
+        private Node step(String name)
+        {
+            if (this.all)
+                return this;
+            if (this.alternatives != null)
+            {
+                ArrayList<Node> found = new ArrayList<Node>();
+                for (Node alternative : this.alternatives)
+                    addIfFound(found, alternative.step(name));
+                return pick(found);
+            }
+            // exact keys already hold every pattern that matches them, see mergeGlobs()
+            Node exact = (this.names == null) ? null : this.names.get(name);
+            if (exact != null || this.globs == null)
+                return exact;
+            ArrayList<Node> found = new ArrayList<Node>();
+            for (int i = 0; i < this.globs.size(); i++)
+            {
+                if (this.globs.get(i).matcher(name).matches())
+                    found.add(this.globNodes.get(i));
+            }
+            return pick(found);
+        }
+
+        private static void addIfFound(ArrayList<Node> found, Node node)
+        {
+            if (node != null)
+                found.add(node);
+        }
+
+        private static Node pick(ArrayList<Node> found)
+        {
+            if (found.size() == 0)
+                return null;
+            if (found.size() == 1)
+                return found.get(0);
+            return new Node(found);
+        }
+
+        private Node add(Object segment)
+        {
+            if (segment instanceof Integer)
+            {
+                if (this.indexes == null)
+                    this.indexes = new HashMap<Integer, Node>();
+                return this.indexes.computeIfAbsent((Integer) segment, (k) -> new Node());
+            } else if (segment == ANY_INDEX) {
+                if (this.anyIndex == null)
+                    this.anyIndex = new Node();
+                return this.anyIndex;
+            } else if (segment instanceof Pattern) {
+                if (this.globs == null)
+                {
+                    this.globs = new ArrayList<Pattern>();
+                    this.globNodes = new ArrayList<Node>();
+                }
+                for (int i = 0; i < this.globs.size(); i++)
+                {
+                    if (this.globs.get(i).pattern().equals(((Pattern) segment).pattern()))
+                        return this.globNodes.get(i);
+                }
+                Node node = new Node();
+                this.globs.add((Pattern) segment);
+                this.globNodes.add(node);
+                return node;
+            }
+            if (this.names == null)
+                this.names = new HashMap<String, Node>();
+            return this.names.computeIfAbsent((String) segment, (k) -> new Node());
+        }
+
+        // Copy every pattern's subtree into the exact siblings it matches, so a key that
+        // has an exact entry never needs the patterns checked while flattening
+        private void mergeGlobs()
+        {
+            if (this.globs != null && this.names != null)
+            {
+                for (Map.Entry<String, Node> entry : this.names.entrySet())
+                {
+                    for (int i = 0; i < this.globs.size(); i++)
+                    {
+                        if (this.globs.get(i).matcher(entry.getKey()).matches())
+                            entry.getValue().mergeFrom(this.globNodes.get(i));
+                    }
+                }
+            }
+            if (this.anyIndex != null && this.indexes != null)
+            {
+                for (Node indexNode : this.indexes.values())
+                    indexNode.mergeFrom(this.anyIndex);
+            }
+            if (this.names != null)
+                this.names.values().forEach((node) -> node.mergeGlobs());
+            if (this.indexes != null)
+                this.indexes.values().forEach((node) -> node.mergeGlobs());
+            if (this.globNodes != null)
+                this.globNodes.forEach((node) -> node.mergeGlobs());
+            if (this.anyIndex != null)
+                this.anyIndex.mergeGlobs();
+        }
+
+        private void mergeFrom(Node other)
+        {
+            this.all |= other.all;
+            if (other.names != null)
+                other.names.forEach((name, node) -> add(name).mergeFrom(node));
+            if (other.indexes != null)
+                other.indexes.forEach((position, node) -> add(position).mergeFrom(node));
+            if (other.globs != null)
+            {
+                for (int i = 0; i < other.globs.size(); i++)
+                    add(other.globs.get(i)).mergeFrom(other.globNodes.get(i));
+            }
+            if (other.anyIndex != null)
+                add(ANY_INDEX).mergeFrom(other.anyIndex);
+        }
+    }
+}
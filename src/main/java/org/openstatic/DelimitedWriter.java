@@ -0,0 +1,185 @@
+package org.openstatic;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+/*
+    Writes CSV or TSV lines straight into one reusable char buffer, without
+    building a String per cell or per line. Cells come out exactly as the old
+    regex based escaping wrote them:
+
+    CSV  - a cell holding a comma, double quote, single quote or space is
+           wrapped in double quotes with its quotes doubled (line breaks are
+           kept as they are). Any other cell has each line break (\r\n counts
+           as one) replaced by a space.
+    TSV  - tabs and carriage returns become spaces.
+
+    A CSV cell is written as it is scanned. In the rare case it turns out to
+    need quotes the buffer is wound back to the start of the cell and it is
+    written again quoted, so most cells are only looked at once.
+*/
+public class DelimitedWriter implements Closeable, Flushable
+{
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    private static final char[] LINE_SEPARATOR = System.lineSeparator().toCharArray();
+
+    private Writer out;
+    private boolean csv;
+    private char[] buffer;
+    private int used;
+
+    private DelimitedWriter(Writer out, boolean csv)
+    {
+        this.out = out;
+        this.csv = csv;
+        this.buffer = new char[BUFFER_SIZE];
+    }
+
+    public static DelimitedWriter csv(Writer out)
+    {
+        return new DelimitedWriter(out, true);
+    }
+
+    public static DelimitedWriter tsv(Writer out)
+    {
+        return new DelimitedWriter(out, false);
+    }
+
+    // One line of cells followed by the line separator
+    public void writeLine(String[] cells) throws IOException
+    {
+        writeCells(cells);
+        reserve(LINE_SEPARATOR.length);
+        for (char c : LINE_SEPARATOR)
+            this.buffer[this.used++] = c;
+    }
+
+    // The cells of a line without the line separator
+    public void writeCells(String[] cells) throws IOException
+    {
+        char separator = this.csv ? ',' : '\t';
+        for (int i = 0; i < cells.length; i++)
+        {
+            String cell = cells[i];
+            // worst case every char doubles plus two quotes and the separator
+            reserve(cell.length() * 2 + 3);
+            if (i > 0)
+                this.buffer[this.used++] = separator;
+            if (this.csv)
+                writeCSVCell(cell);
+            else
+                writeTSVCell(cell);
+        }
+    }
+
+    private void writeCSVCell(String cell)
+    {
+        char[] buffer = this.buffer;
+        int start = this.used;
+        int pos = start;
+        int length = cell.length();
+        for (int i = 0; i < length; i++)
+        {
+            char c = cell.charAt(i);
+            switch (c)
+            {
+                case ',':
+                case '"':
+                case '\'':
+                case ' ':
+                    this.used = start;
+                    writeQuotedCell(cell);
+                    return;
+                case '\r':
+                    // \r\n is a single line break
+                    if (i + 1 < length && cell.charAt(i + 1) == '\n')
+                        i++;
+                    buffer[pos++] = ' ';
+                    break;
+                case '\n':
+                case '\u000B':
+                case '\u000C':
+                case '\u0085':
+                case '\u2028':
+                case '\u2029':
+                    buffer[pos++] = ' ';
+                    break;
+                default:
+                    buffer[pos++] = c;
+            }
+        }
+        this.used = pos;
+    }
+
+    private void writeQuotedCell(String cell)
+    {
+        char[] buffer = this.buffer;
+        int pos = this.used;
+        int length = cell.length();
+        buffer[pos++] = '"';
+        for (int i = 0; i < length; i++)
+        {
+            char c = cell.charAt(i);
+            if (c == '"')
+                buffer[pos++] = '"';
+            buffer[pos++] = c;
+        }
+        buffer[pos++] = '"';
+        this.used = pos;
+    }
+
+    private void writeTSVCell(String cell)
+    {
+        char[] buffer = this.buffer;
+        int pos = this.used;
+        int length = cell.length();
+        for (int i = 0; i < length; i++)
+        {
+            char c = cell.charAt(i);
+            buffer[pos++] = (c == '\t' || c == '\r') ? ' ' : c;
+        }
+        this.used = pos;
+    }
+
+    // Chars in the buffer that haven't been written out yet
+    public int getPending()
+    {
+        return this.used;
+    }
+
+    // Make room for count more chars, flushing first and growing the buffer for huge cells
+    private void reserve(int count) throws IOException
+    {
+        if (this.used + count <= this.buffer.length)
+            return;
+        flushBuffer();
+        if (count > this.buffer.length)
+            this.buffer = new char[count];
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        if (this.used > 0)
+        {
+            this.out.write(this.buffer, 0, this.used);
+            this.used = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        flushBuffer();
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        flushBuffer();
+        this.out.close();
+    }
+}
@@ -0,0 +1,195 @@
+package org.openstatic;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+    Sends the table to several writers at once, each on its own thread.
+
+    Rows are handed over in batches through a small bounded queue per writer,
+    so a slow format (HTML, JSON) only holds up the others once its queue is
+    full and the whole table takes about as long as the slowest writer instead
+    of the sum of all of them. A batch is shared by every writer, the rows in
+    it must not be changed once written.
+
+    If a writer fails it stops writing but keeps emptying its queue so the
+    others can finish, the error comes back out of the next call made here.
+*/
+public class FanOutTableWriter implements TableWriter
+{
+    public static final int BATCH_SIZE = 256;
+    public static final int QUEUE_BATCHES = 16;
+
+    private Lane[] lanes;
+    private String[][] batch;
+    private int batchSize;
+    private boolean closed;
+
+    public FanOutTableWriter(List<TableWriter> writers)
+    {
+        this.lanes = new Lane[writers.size()];
+        for (int i = 0; i < this.lanes.length; i++)
+        {
+            this.lanes[i] = new Lane(writers.get(i));
+            Thread thread = new Thread(this.lanes[i], "table-writer-" + String.valueOf(i));
+            thread.setDaemon(true);
+            this.lanes[i].thread = thread;
+            thread.start();
+        }
+        this.batch = new String[BATCH_SIZE][];
+    }
+
+    @Override
+    public void writeHeader(String[] columns) throws IOException
+    {
+        send((writer) -> writer.writeHeader(columns));
+    }
+
+    @Override
+    public void writeRow(String[] row) throws IOException
+    {
+        this.batch[this.batchSize++] = row;
+        if (this.batchSize == BATCH_SIZE)
+            flushBatch();
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        flushBatch();
+        send((writer) -> writer.finish());
+    }
+
+    // Closes every writer and waits for them, throws the first error any of them hit
+    @Override
+    public void close() throws IOException
+    {
+        if (this.closed)
+            return;
+        this.closed = true;
+        flushBatchQuietly();
+        for (Lane lane : this.lanes)
+            lane.put(Lane.CLOSE);
+        for (Lane lane : this.lanes)
+        {
+            try
+            {
+                lane.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for table writers", e);
+            }
+        }
+        checkFailures();
+    }
+
+    private void flushBatch() throws IOException
+    {
+        if (this.batchSize == 0)
+            return;
+        String[][] rows = this.batch;
+        int count = this.batchSize;
+        this.batch = new String[BATCH_SIZE][];
+        this.batchSize = 0;
+        send((writer) -> {
+            for (int i = 0; i < count; i++)
+                writer.writeRow(rows[i]);
+        });
+    }
+
+    // Used on close, where a failure has either been thrown already or is thrown after the join
+    private void flushBatchQuietly()
+    {
+        try
+        {
+            flushBatch();
+        } catch (IOException e) {
+            JSONRoller.logIt("Table writer failed: " + e.getMessage());
+        }
+    }
+
+    private void send(Step step) throws IOException
+    {
+        checkFailures();
+        for (Lane lane : this.lanes)
+            lane.put(step);
+    }
+
+    private void checkFailures() throws IOException
+    {
+        for (Lane lane : this.lanes)
+        {
+            Throwable failure = lane.failure;
+            if (failure instanceof IOException)
+                throw (IOException) failure;
+            if (failure != null)
+                throw new IOException(failure);
+        }
+    }
+
+    private interface Step
+    {
+        public void run(TableWriter writer) throws IOException;
+    }
+
+    // One writer, its queue and the thread draining it
+    private static class Lane implements Runnable
+    {
+        private static final Step CLOSE = (writer) -> writer.close();
+
+        private TableWriter writer;
+        private BlockingQueue<Step> queue;
+        private Thread thread;
+        private volatile Throwable failure;
+
+        public Lane(TableWriter writer)
+        {
+            this.writer = writer;
+            this.queue = new ArrayBlockingQueue<Step>(QUEUE_BATCHES);
+        }
+
+        public void put(Step step) throws IOException
+        {
+            try
+            {
+                this.queue.put(step);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted writing table", e);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                Step step;
+                try
+                {
+                    step = this.queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // after a failure only close is still run, everything else is drained
+                if (this.failure == null || step == CLOSE)
+                {
+                    try
+                    {
+                        step.run(this.writer);
+                    } catch (Throwable t) {
+                        if (this.failure == null)
+                            this.failure = t;
+                    }
+                }
+                if (step == CLOSE)
+                {
+                    Stats.flush();
+                    return;
+                }
+            }
+        }
+    }
+}
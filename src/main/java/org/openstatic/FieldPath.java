@@ -0,0 +1,118 @@
+package org.openstatic;
+
+import java.util.ArrayList;
+
+import org.json.*;
+
+/*
+    A flattened column name (user.address.country, items[0].sku) turned back
+    into a path that can be followed through a parsed record, so a value can
+    be looked at without flattening the whole record first.
+
+    Keys that contain dots themselves are still found, at every level the
+    shortest key that exists and leads to a value wins.
+*/
+public class FieldPath
+{
+    private Object[] segments;
+    private String[][] dottedKeys;
+
+    private FieldPath(Object[] segments)
+    {
+        this.segments = segments;
+        // every run of name segments joined back together, [start][end]
+        this.dottedKeys = new String[segments.length][segments.length];
+        for (int start = 0; start < segments.length; start++)
+        {
+            if (!(segments[start] instanceof String))
+                continue;
+            String key = (String) segments[start];
+            this.dottedKeys[start][start] = key;
+            for (int end = start + 1; end < segments.length && segments[end] instanceof String; end++)
+            {
+                key = key + "." + segments[end];
+                this.dottedKeys[start][end] = key;
+            }
+        }
+    }
+
+    public static FieldPath compile(String path)
+    {
+        return new FieldPath(segments(path));
+    }
+
+    // Splits a column name into its object keys (String) and array positions (Integer)
+    public static Object[] segments(String path)
+    {
+        ArrayList<Object> segments = new ArrayList<Object>();
+        StringBuilder name = new StringBuilder();
+        int i = 0;
+        while (i < path.length())
+        {
+            char c = path.charAt(i);
+            int close = (c == '[') ? path.indexOf(']', i) : -1;
+            if (c == '.')
+            {
+                if (name.length() > 0)
+                    segments.add(name.toString());
+                name.setLength(0);
+                i++;
+            } else if (close > i + 1 && isDigits(path, i + 1, close)) {
+                if (name.length() > 0)
+                    segments.add(name.toString());
+                name.setLength(0);
+                segments.add(Integer.valueOf(path.substring(i + 1, close)));
+                i = close + 1;
+            } else {
+                name.append(c);
+                i++;
+            }
+        }
+        if (name.length() > 0)
+            segments.add(name.toString());
+        return segments.toArray();
+    }
+
+    // The value at the end of the path, null if the record doesn't have one
+    public Object lookup(JSONObject record)
+    {
+        return walk(record, 0);
+    }
+
+    private Object walk(Object node, int index)
+    {
+        if (index == this.segments.length)
+            return node;
+        if (this.segments[index] instanceof Integer)
+        {
+            if (node instanceof JSONArray)
+                return walk(((JSONArray) node).opt(((Integer) this.segments[index]).intValue()), index + 1);
+            return null;
+        }
+        if (!(node instanceof JSONObject))
+            return null;
+        JSONObject jo = (JSONObject) node;
+        String[] keys = this.dottedKeys[index];
+        for (int end = index; end < keys.length && keys[end] != null; end++)
+        {
+            Object child = jo.opt(keys[end]);
+            if (child != null)
+            {
+                Object found = walk(child, end + 1);
+                if (found != null)
+                    return found;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isDigits(String text, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (!Character.isDigit(text.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+}
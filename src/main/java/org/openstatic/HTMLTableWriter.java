@@ -0,0 +1,41 @@
+package org.openstatic;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+public class HTMLTableWriter implements TableWriter
+{
+    private String tableName;
+    private PrintWriter pw;
+
+    public HTMLTableWriter(String tableName, PrintWriter pw)
+    {
+        this.tableName = tableName;
+        this.pw = pw;
+    }
+
+    @Override
+    public void writeHeader(String[] columns) throws IOException
+    {
+        OutputData.writeHTMLStart(this.tableName, this.pw, columns);
+    }
+
+    @Override
+    public void writeRow(String[] row) throws IOException
+    {
+        this.pw.println(OutputData.convertToHTML(row));
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        OutputData.writeHTMLEnd(this.pw);
+        this.pw.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.pw.close();
+    }
+}
@@ -0,0 +1,160 @@
+package org.openstatic;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/*
+    One input given on the command line: a file, a URL or STDIN.
+
+    Files can be opened as many times as needed (the second read comes out of
+    the OS page cache). URLs and STDIN can only be consumed once, so when an
+    input has to be read twice call spill() first to copy it into a temp file.
+*/
+public class InputSource
+{
+    public static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private String name;
+    private Path path;
+    private URL url;
+    private boolean stdin;
+    private boolean csv;
+    private boolean spilled;
+
+    private InputSource(String name)
+    {
+        this.name = name;
+    }
+
+    public static InputSource file(String filename)
+    {
+        InputSource source = new InputSource(filename);
+        source.path = new File(filename).toPath();
+        source.csv = filename.toLowerCase().endsWith(".csv");
+        return source;
+    }
+
+    public static InputSource url(String urlString) throws IOException
+    {
+        InputSource source = new InputSource(urlString);
+        source.url = new URL(urlString);
+        return source;
+    }
+
+    public static InputSource stdin()
+    {
+        InputSource source = new InputSource("STDIN");
+        source.stdin = true;
+        return source;
+    }
+
+    public static BufferedReader openFileReader(Path path) throws IOException
+    {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        Reader channelReader = Channels.newReader(Stats.READ.wrap(channel), StandardCharsets.UTF_8.newDecoder(), READ_BUFFER_SIZE);
+        return new BufferedReader(channelReader, READ_BUFFER_SIZE);
+    }
+
+    public String getName()
+    {
+        return this.name;
+    }
+
+    // Name used for the table title, the file or url path without its extension
+    public String getTableName()
+    {
+        if (this.url != null)
+            return JSONRoller.filenameWithoutExtension(this.url.getPath());
+        if (this.stdin)
+            return null;
+        return JSONRoller.filenameWithoutExtension(this.name);
+    }
+
+    // The file backing this input, null for urls and STDIN that haven't been spilled
+    public Path getPath()
+    {
+        return this.path;
+    }
+
+    public boolean isURL()
+    {
+        return this.url != null;
+    }
+
+    // Only reliable for urls once the content type is known (after openReader() or spill())
+    public boolean isCSV()
+    {
+        return this.csv;
+    }
+
+    public Reader openReader() throws IOException
+    {
+        if (this.path != null)
+            return openFileReader(this.path);
+        return new BufferedReader(new InputStreamReader(Stats.READ.wrap(openStream()), StandardCharsets.UTF_8), READ_BUFFER_SIZE);
+    }
+
+    private InputStream openStream() throws IOException
+    {
+        if (this.stdin)
+            return System.in;
+        URLConnection conn = this.url.openConnection();
+        InputStream in = conn.getInputStream();
+        String contentType = conn.getContentType();
+        JSONRoller.logIt("Reading URL: " + this.name + " with content type: " + contentType);
+        if (contentType != null && (contentType.toLowerCase().contains("json") || contentType.toLowerCase().contains("text/javascript")))
+        {
+            this.csv = false;
+        } else if (contentType != null && (contentType.toLowerCase().contains("csv")) || this.name.toLowerCase().endsWith(".csv")) {
+            this.csv = true;
+        } else {
+            in.close();
+            throw new IOException("URL Content-Type is not JSON or CSV: " + contentType);
+        }
+        return in;
+    }
+
+    // Copy a one-shot input (url or STDIN) into a temp file so it can be read again
+    public void spill() throws IOException
+    {
+        if (this.path != null)
+            return;
+        // the content type of a url isn't known until it is opened, so the name doesn't guess at it
+        Path tempFile = Files.createTempFile("json-roller-", ".tmp");
+        tempFile.toFile().deleteOnExit();
+        try (InputStream in = Stats.READ.wrap(openStream()))
+        {
+            Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        JSONRoller.logIt("Spilled " + this.name + " to " + tempFile.toString());
+        this.path = tempFile;
+        this.spilled = true;
+    }
+
+    // Remove the temp file created by spill()
+    public void cleanUp()
+    {
+        if (this.spilled)
+        {
+            try
+            {
+                Files.deleteIfExists(this.path);
+            } catch (IOException e) {
+                JSONRoller.logIt("Unable to remove " + this.path.toString());
+            }
+        }
+    }
+}
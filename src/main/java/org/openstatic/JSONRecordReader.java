@@ -0,0 +1,247 @@
+package org.openstatic;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Path;
+
+import org.json.*;
+
+/*
+    Pulls JSON records out of a character stream one at a time instead of
+    loading the whole document into a String first.
+
+    The three input layouts described in the README are detected from the
+    first few characters of the stream:
+
+     * a root array                    -> each element is a record
+     * one object per line (NDJSON)    -> each line is a record
+     * a single root object            -> the object is the only record
+*/
+public class JSONRecordReader implements Closeable
+{
+    public static final String FORMAT_ARRAY = "Root JSONArray";
+    public static final String FORMAT_LINES = "1 object per line";
+    public static final String FORMAT_OBJECT = "Root JSONObject";
+
+    private BufferedReader reader;
+    private String format;
+    private Object pending;
+    private Object second;
+    private String pushBack;
+    private JSONTokener tokener;
+    private boolean arrayFinished;
+    private long lineNumber;
+    private long sliceStart = -1;
+    private boolean started;
+
+    public JSONRecordReader(Reader reader)
+    {
+        if (reader instanceof BufferedReader)
+            this.reader = (BufferedReader) reader;
+        else
+            this.reader = new BufferedReader(reader, InputSource.READ_BUFFER_SIZE);
+    }
+
+    public static JSONRecordReader open(Path path) throws IOException
+    {
+        return new JSONRecordReader(InputSource.openFileReader(path));
+    }
+
+    public static JSONRecordReader of(String data)
+    {
+        return new JSONRecordReader(new StringReader(data));
+    }
+
+    // For a slice of a file already known to hold one object per line, sliceStart is
+    // the byte offset of the slice so skipped lines can still be found in the file
+    public static JSONRecordReader lines(Reader reader, long sliceStart)
+    {
+        JSONRecordReader recordReader = new JSONRecordReader(reader);
+        recordReader.sliceStart = sliceStart;
+        recordReader.started = true;
+        recordReader.format = FORMAT_LINES;
+        return recordReader;
+    }
+
+    // Returns the detected layout, or null if the stream was empty or not JSON
+    public String getFormat() throws IOException
+    {
+        start();
+        return this.format;
+    }
+
+    // Returns the next record, or null once the stream is exhausted
+    public Object next() throws IOException
+    {
+        Stats.PARSE.start();
+        try
+        {
+            Object record = readNext();
+            if (record != null)
+                Stats.PARSE.countRecords(1);
+            return record;
+        } finally {
+            Stats.PARSE.stop();
+        }
+    }
+
+    private Object readNext() throws IOException
+    {
+        start();
+        if (this.pending != null)
+        {
+            Object record = this.pending;
+            this.pending = null;
+            return record;
+        }
+        if (FORMAT_ARRAY.equals(this.format))
+        {
+            return nextElement();
+        } else if (FORMAT_LINES.equals(this.format)) {
+            return nextLine();
+        }
+        return null;
+    }
+
+    private void start() throws IOException
+    {
+        if (this.started)
+            return;
+        this.started = true;
+        int c = peekNonWhitespace();
+        if (c == '[')
+        {
+            this.format = FORMAT_ARRAY;
+            this.tokener = new JSONTokener(this.reader);
+            this.tokener.next();
+            char nextChar = this.tokener.nextClean();
+            if (nextChar == 0)
+                throw this.tokener.syntaxError("Expected a ',' or ']'");
+            if (nextChar == ']')
+                this.arrayFinished = true;
+            else
+                this.tokener.back();
+        } else if (c == '{') {
+            // The tokener stops right after the closing brace, so whatever is
+            // left on the reader tells us if this is one object or many.
+            this.pending = new JSONObject(new JSONTokener(this.reader));
+            this.lineNumber = 1;
+            String rest = this.reader.readLine();
+            if (rest != null && !"".equals(rest.trim()))
+            {
+                // more than one object on the first line, keep going line by line
+                this.format = FORMAT_LINES;
+                this.pushBack = rest;
+            } else {
+                Object second = nextLine();
+                if (second == null)
+                {
+                    this.format = FORMAT_OBJECT;
+                } else {
+                    this.format = FORMAT_LINES;
+                    this.second = second;
+                }
+            }
+        }
+        if (this.format != null)
+            JSONRoller.logIt("Format detected: " + this.format);
+    }
+
+    // Walk the root array one element at a time, only the current element is ever
+    // in memory. Follows the same rules as the JSONArray(JSONTokener) constructor.
+    private Object nextElement()
+    {
+        if (this.arrayFinished)
+            return null;
+        Object value;
+        if (this.tokener.nextClean() == ',')
+        {
+            this.tokener.back();
+            value = JSONObject.NULL;
+        } else {
+            this.tokener.back();
+            value = this.tokener.nextValue();
+        }
+        switch (this.tokener.nextClean())
+        {
+            case ',':
+                char nextChar = this.tokener.nextClean();
+                if (nextChar == 0)
+                    throw this.tokener.syntaxError("Expected a ',' or ']'");
+                if (nextChar == ']')
+                    this.arrayFinished = true;
+                else
+                    this.tokener.back();
+                break;
+            case ']':
+                this.arrayFinished = true;
+                break;
+            default:
+                throw this.tokener.syntaxError("Expected a ',' or ']'");
+        }
+        return value;
+    }
+
+    private Object nextLine() throws IOException
+    {
+        if (this.second != null)
+        {
+            Object record = this.second;
+            this.second = null;
+            return record;
+        }
+        while (true)
+        {
+            String str = this.pushBack;
+            if (str != null)
+            {
+                this.pushBack = null;
+            } else {
+                str = this.reader.readLine();
+                if (str == null)
+                    return null;
+                this.lineNumber++;
+                if (this.lineNumber == 1 && str.length() > 0 && str.charAt(0) == '\uFEFF')
+                    str = str.substring(1);
+            }
+            if (!"".equals(str.trim()))
+            {
+                try
+                {
+                    return new JSONObject(str);
+                } catch (JSONException lineEx) {
+                    String where = String.valueOf(this.lineNumber);
+                    if (this.sliceStart >= 0)
+                        where += " of the slice at byte " + String.valueOf(this.sliceStart);
+                    JSONRoller.logIt("Skipped line " + where + ": " + lineEx.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    // Skip leading whitespace and report the first real character without consuming it
+    private int peekNonWhitespace() throws IOException
+    {
+        while (true)
+        {
+            this.reader.mark(1);
+            int c = this.reader.read();
+            if (c == -1)
+                return -1;
+            if (!Character.isWhitespace(c) && c != '\uFEFF')
+            {
+                this.reader.reset();
+                return c;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.reader.close();
+    }
+}
@@ -2,29 +2,29 @@ package org.openstatic;
 
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.stream.*;
 import java.util.List;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.function.Function;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.File;
-import java.io.FileReader;
 import java.io.InputStreamReader;
-import java.net.URL;
-import java.net.URLConnection;
 import java.net.URLDecoder;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.BufferedWriter;
@@ -33,19 +33,24 @@ import org.apache.commons.cli.*;
 import org.apache.commons.lang3.CharSet;
 import org.json.*;
 
-import com.opencsv.CSVParserBuilder;
-import com.opencsv.CSVReader;
-import com.opencsv.CSVReaderBuilder;
-import com.opencsv.RFC4180ParserBuilder;
 
 public class JSONRoller
 {
     public static final String VERSION = "1.2";
     private static boolean verbose = false;
     private static List<String> keyLayers = new ArrayList<String>();
-    private static List<String> columnOrder = new ArrayList<String>();
+    private static ColumnRegistry columnOrder = new ColumnRegistry();
     private static long processingStartAt;
     private static long processingEndAt;
+    private static TableBuilder tableBuilder;
+    private static JSONArray workingData;
+    private static long recordsRead;
+    private static int threads = Runtime.getRuntime().availableProcessors();
+    private static char csvSeparator = ',';
+    private static int multilineLimit = CSVRecordReader.DEFAULT_MULTILINE_LIMIT;
+    private static int bufferSize = UTF8ChannelWriter.DEFAULT_BUFFER_SIZE;
+    private static long rollRows = 0;
+    private static long rollBytes = 0;
 
     public static void main(String[] args) throws IOException 
     {
@@ -78,7 +83,7 @@ public class JSONRoller
         keyOption.setArgName("key1,key2");
         options.addOption(keyOption);
 
-        Option filterOption = new Option("f", "filter", true, "Comma seperated list of filters (Operators are = != >= <= < >) output data will be limited by filters");
+        Option filterOption = new Option("f", "filter", true, "Comma seperated list of filters (Operators are = != >= <= < >) output data will be limited by filters. Use | for OR, ! for NOT and ( ) to group filters");
         filterOption.setArgName("column=value,column!=value");
         options.addOption(filterOption);
 
@@ -106,6 +111,26 @@ public class JSONRoller
         mdOption.setOptionalArg(true);
         mdOption.setArgName("filename.md");
         options.addOption(mdOption);
+
+        options.addOption(Option.builder().longOpt("stream").desc("Stream table output in two passes, the first pass collects the columns and the second writes each row as it is read. Memory use depends on the number of columns instead of the number of rows").build());
+        Option memoryBudgetOption = Option.builder().longOpt("memory-budget").hasArg().argName("size").desc("Amount of flattened row data to keep in memory before spilling rows to a temp file (example: 512m, 2g)").build();
+        options.addOption(memoryBudgetOption);
+        options.addOption(Option.builder().longOpt("threads").hasArg().argName("count").desc("Number of threads used to read and parse the inputs (defaults to the number of processors)").build());
+        options.addOption(Option.builder().longOpt("separator").hasArg().argName("char").desc("Field separator for CSV input (default is a comma, use \\t for tabs)").build());
+        options.addOption(Option.builder().longOpt("multiline-limit").hasArg().argName("lines").desc("Most lines a single quoted CSV field may span before the row is skipped (default 100)").build());
+        options.addOption(Option.builder().longOpt("columns").hasArg().argName("column1,column2").desc("Comma seperated list of columns to output, selecting an object or array keeps everything under it. Allows * and ? in keys and [*] for any array index (example: id,user.*.country,items[*].sku)").build());
+        options.addOption(Option.builder().longOpt("json-style").hasArg().argName("pretty|compact|ndjson").desc("Layout of the -j output: an indented array (default), an array without whitespace or one object per line").build());
+        options.addOption(Option.builder().longOpt("html-style").hasArg().argName("table|virtual").desc("Layout of the -h output: every row in one table (default) or the rows as script data, only the rows in sight are drawn. Use virtual for more than about 50,000 rows").build());
+        options.addOption(Option.builder().longOpt("html-shard").hasArg().argName("rows").desc("Split the -h output into pages of at most this many rows (01_report.html, 02_report.html ...), the -h filename becomes an index of the pages with a summary of each column").build());
+        options.addOption(Option.builder().longOpt("roll-rows").hasArg().argName("rows").desc("Write the -c, -t and -j outputs as numbered files (01_export.csv, 02_export.csv ...) of at most this many rows, each with its own header").build());
+        options.addOption(Option.builder().longOpt("roll-bytes").hasArg().argName("size").desc("Start the next numbered -c, -t or -j file once the current one reaches this size (example: 100m, 1g)").build());
+        options.addOption(Option.builder().longOpt("roll-gzip").desc("Compress each finished numbered file to .gz in the background").build());
+        options.addOption(Option.builder().longOpt("md-width").hasArg().argName("chars").desc("Stream the -m output: column widths come from the first " + String.valueOf(MarkdownTableWriter.SAMPLE_ROWS) + " rows and no column is wider than this").build());
+        options.addOption(Option.builder().longOpt("buffer-size").hasArg().argName("size").desc("Size of the output buffer for each table written (default 1m, example: 256k, 8m)").build());
+        options.addOption(Option.builder().longOpt("stats").desc("Print time, CPU, allocation, record and byte counts for each stage (read, parse, pivot, filter, flatten, each writer) to STDERR when done").build());
+        options.addOption(Option.builder().longOpt("progress").desc("Report bytes read, records parsed / kept / written, rate, ETA and heap use to STDERR every few seconds").build());
+        options.addOption(Option.builder().longOpt("progress-file").hasArg().argName("filename.json").desc("Keep a JSON status file up to date with the same progress figures (replaced on every update)").build());
+        options.addOption(Option.builder().longOpt("stats-format").hasArg().argName("text|json").desc("Format of the --stats report (default text)").build());
         String tableName = "";
         try
         {
@@ -125,296 +150,202 @@ public class JSONRoller
 
             if (cmd.hasOption("v"))
                 JSONRoller.verbose = true;
-            
-            JSONArray workingData = new JSONArray();
-            JSONRoller.processingStartAt = System.currentTimeMillis();
-            if (cmd.hasOption("i"))
+
+            if (cmd.hasOption("stats"))
+                Stats.enable();
+
+            if (cmd.hasOption("progress") || cmd.hasOption("progress-file"))
+                Progress.start(cmd.hasOption("progress"), cmd.hasOption("progress-file") ? new File(cmd.getOptionValue("progress-file")) : null);
+
+            if (cmd.hasOption("threads"))
+                JSONRoller.threads = Integer.valueOf(cmd.getOptionValue("threads")).intValue();
+
+            if (cmd.hasOption("separator"))
             {
-                List<String> filenames = Arrays.asList(cmd.getOptionValue("i").split(","));
-                Iterator<String> fnIterator = filenames.iterator();
-                while(fnIterator.hasNext())
-                {
-                    String filename = fnIterator.next().trim();
-                    try
-                    {
-                        logIt("Reading File: " + filename);
-                        if (filename.toLowerCase().endsWith(".csv"))
-                        {
-                            try 
-                            {
-                                int rowNum = 0;
-                                List<String[]> r = new LinkedList<String[]>();
-                                FileReader fileReader = new FileReader(filename, Charset.forName("UTF-8"));
-                                CSVReader reader = new CSVReaderBuilder(fileReader)
-                                                        .withCSVParser(new RFC4180ParserBuilder().withQuoteChar('"').withSeparator(',').build())
-                                                        .withMultilineLimit(100)
-                                                        .withKeepCarriageReturn(false)
-                                                        .build();
-                                String[] line = reader.readNext();
-                                boolean hasNext = true;
-                                while (hasNext)
-                                {
-                                    r.add(line);
-                                    rowNum++;
-                                    try
-                                    {
-                                        line = reader.readNext();
-                                        if (line == null)
-                                            hasNext = false;
-                                    } catch (Exception csvEx) {
-                                        logIt("Row Error(" + String.valueOf(rowNum) + "): " + csvEx.getLocalizedMessage());
-                                    }
-                                }
-                                reader.close();
-                                String[] columns = r.get(0);
-                                for(int i = 0; i < columns.length; i++)
-                                    registerColumn(columns[i]);
-                                r.remove(0);
-                                r.forEach((row) -> {
-                                    try
-                                    {
-                                        JSONObject rowObject = new JSONObject();
-                                        for(int i = 0; i < row.length; i++)
-                                        {
-                                            rowObject.put(columns[i], row[i]);
-                                        }
-                                        workingData.put(rowObject);
-                                    } catch (Exception insertFailure) {
-                                        logIt("Bad Row (" + insertFailure.getLocalizedMessage() + "): " + new JSONArray(row).toString());
-                                    }
-                                });
-                                tableName = filenameWithoutExtension(filename);
-                                logIt("Finished reading CSV: " + filename  + " " + String.valueOf(rowNum) + " rows");
-                            } catch (Exception e) {
-                                logIt("Error reading: " + filename);
-                                e.printStackTrace(System.err);
-                            }
-                        } else {
-                            File inFile = new File(filename);
-                            String data = (new String(Files.readAllBytes(Paths.get(inFile.toURI())), StandardCharsets.UTF_8));
-                            readJSONData(data).forEach((o) -> {
-                                workingData.put(o);
-                            });
-                            tableName = filenameWithoutExtension(filename);
-                            logIt("Finished reading JSON: " + filename);
-                        }
-                    } catch (Exception rfe) {
-                        logIt("File Error: " + filename);
-                        if (JSONRoller.verbose)
-                            rfe.printStackTrace(System.err);
-                    }
-                }
+                String separator = cmd.getOptionValue("separator");
+                if ("\\t".equals(separator) || "tab".equalsIgnoreCase(separator))
+                    JSONRoller.csvSeparator = '\t';
+                else if (separator.length() == 1)
+                    JSONRoller.csvSeparator = separator.charAt(0);
+                else
+                    System.err.println("Separator must be a single character, using " + String.valueOf(JSONRoller.csvSeparator));
             }
-            
-            if (cmd.hasOption("u")) 
+
+            if (cmd.hasOption("multiline-limit"))
+                JSONRoller.multilineLimit = Integer.valueOf(cmd.getOptionValue("multiline-limit")).intValue();
+
+            if (cmd.hasOption("json-style") && !JSONTableWriter.isStyle(cmd.getOptionValue("json-style")))
             {
-                String urlString = cmd.getOptionValue("u", "");
-                URL u = new URL(urlString);
-                URLConnection conn = u.openConnection();
-                try (InputStream in = conn.getInputStream()) {
-                    String contentType = conn.getContentType();
-                    logIt("Reading URL: " + urlString + " with content type: " + contentType);
-                    if (contentType != null && (contentType.toLowerCase().contains("json") || contentType.toLowerCase().contains("text/javascript")))
-                    {
-                        String data = new String(in.readAllBytes(), StandardCharsets.UTF_8);
-                        readJSONData(data).forEach((o) -> {
-                            workingData.put(o);
-                        });
-                    } else if (contentType != null && (contentType.toLowerCase().contains("csv")) || urlString.toLowerCase().endsWith(".csv")) {
-                        try 
-                        {
-                            int rowNum = 0;
-                            List<String[]> r = new LinkedList<String[]>();
-                            CSVReader reader = new CSVReaderBuilder(new InputStreamReader(in, StandardCharsets.UTF_8))
-                                                    .withCSVParser(new RFC4180ParserBuilder().withQuoteChar('"').withSeparator(',').build())
-                                                    .withMultilineLimit(100)
-                                                    .withKeepCarriageReturn(false)
-                                                    .build();
-                            String[] line = reader.readNext();
-                            boolean hasNext = true;
-                            while (hasNext)
-                            {
-                                r.add(line);
-                                rowNum++;
-                                try
-                                {
-                                    line = reader.readNext();
-                                    if (line == null)
-                                        hasNext = false;
-                                } catch (Exception csvEx) {
-                                    logIt("Row Error(" + String.valueOf(rowNum) + "): " + csvEx.getLocalizedMessage());
-                                }
-                            }
-                            reader.close();
-                            String[] columns = r.get(0);
-                            for(int i = 0; i < columns.length; i++)
-                                registerColumn(columns[i]);
-                            r.remove(0);
-                            r.forEach((row) -> {
-                                try
-                                {
-                                    JSONObject rowObject = new JSONObject();
-                                    for(int i = 0; i < row.length; i++)
-                                    {
-                                        rowObject.put(columns[i], row[i]);
-                                    }
-                                    workingData.put(rowObject);
-                                } catch (Exception insertFailure) {
-                                    logIt("Bad Row (" + insertFailure.getLocalizedMessage() + "): " + new JSONArray(row).toString());
-                                }
-                            });
-                            tableName = filenameWithoutExtension(u.getPath());
-                            logIt("Finished reading CSV: " + urlString  + " " + String.valueOf(rowNum) + " rows");
-                        } catch (Exception e) {
-                            System.err.println("Error reading: " + urlString);
-                            e.printStackTrace(System.err);
-                        }   
-                    } else {
-                        System.err.println("URL Content-Type is not JSON or CSV: " + contentType);
-                    }
-                }
-            } 
-            if (workingData.length() == 0)
+                System.err.println("JSON style must be pretty, compact or ndjson");
+                System.exit(1);
+            }
+
+            if (cmd.hasOption("html-style") && !isHTMLStyle(cmd.getOptionValue("html-style")))
             {
-                System.err.println("You must specify an input file -i [filename] or url -u [url] use -? for help!");
-                System.exit(0);
-            } else {
-                logIt("Root Objects: " + workingData.length());
+                System.err.println("HTML style must be table or virtual");
+                System.exit(1);
+            }
 
+            if (cmd.hasOption("html-shard") && Integer.valueOf(cmd.getOptionValue("html-shard")).intValue() < 1)
+            {
+                System.err.println("HTML shard size must be at least one row");
+                System.exit(1);
             }
 
-            // Here are all our pivoted outputs
-            if (cmd.hasOption("c") || cmd.hasOption("t") || cmd.hasOption("m") || cmd.hasOption("j") || cmd.hasOption("h"))
+            if (cmd.hasOption("md-width") && !isCount(cmd.getOptionValue("md-width"), 0, Integer.MAX_VALUE))
+            {
+                System.err.println("Markdown width must be a number of characters (0 for no limit)");
+                System.exit(1);
+            }
+
+            String csvArg = cmd.getOptionValue("c");
+            if (csvArg != null && csvArg.contains(",") && !isCount(csvArg.substring(csvArg.indexOf(',') + 1), 1, Integer.MAX_VALUE))
+            {
+                System.err.println("Split CSV error, check your chunk size");
+                System.exit(1);
+            }
+
+            if (cmd.hasOption("roll-rows"))
             {
-                JSONArray pivotedData = workingData;
-                if (workingData.length() == 1)
+                if (!isCount(cmd.getOptionValue("roll-rows"), 1, Long.MAX_VALUE))
                 {
-                    logIt("Singular Object Detected: performing table pivot");
-                    pivotedData = new JSONArray(pivotJSONObject(new JSONObject(), 0, workingData.getJSONObject(0)));
+                    System.err.println("Roll rows must be at least one row");
+                    System.exit(1);
                 }
-                
-                int recordCount = pivotedData.length();
+                JSONRoller.rollRows = Long.valueOf(cmd.getOptionValue("roll-rows").trim()).longValue();
+            }
 
-                if (cmd.hasOption("f"))
+            if (cmd.hasOption("roll-bytes"))
+            {
+                try
                 {
-                    String filters = cmd.getOptionValue("f");
-                    pivotedData = filterData(pivotedData, filters);
-                    int filteredRecordCount = pivotedData.length();
-                    logIt("Records Generated: " + String.valueOf(recordCount));
-                    logIt("Records Filtered (" + filters + "): " + String.valueOf(recordCount - filteredRecordCount));
-                    logIt("Records Output: " + String.valueOf(filteredRecordCount));
-                } else {
-                    logIt("Records Output: " + String.valueOf(recordCount));
+                    JSONRoller.rollBytes = parseByteSize(cmd.getOptionValue("roll-bytes"));
+                } catch (NumberFormatException nfe) {
+                    JSONRoller.rollBytes = 0;
                 }
-                List<String[]> csvData = JSONArrayFlatten(pivotedData);
-                JSONRoller.processingEndAt = System.currentTimeMillis();
-                long processingDuration = JSONRoller.processingEndAt - JSONRoller.processingStartAt;
-                logIt("Processing Time: " + String.valueOf(processingDuration) + "ms");
-                if (cmd.hasOption("c"))
+                if (JSONRoller.rollBytes < 1)
                 {
-                    String optionalArg = cmd.getOptionValue("c");
-                    if (optionalArg != null)
-                    {
-                        String filename = optionalArg;
-                        if (optionalArg.contains(","))
-                        {
-                            try
-                            {
-                                StringTokenizer st = new StringTokenizer(optionalArg, ",");
-                                filename = st.nextToken();
-                                int limit = Integer.valueOf(st.nextToken()).intValue();
-                                List<List<String[]>> chunks = chunkCSV(csvData, limit);
-                                int piece = 1;
-                                for (Iterator<List<String[]>> chunkIterator = chunks.iterator(); chunkIterator.hasNext(); piece++)
-                                {
-                                    List<String[]> chunk = chunkIterator.next();
-                                    File csvOutputFile = new File(String.format("%02d",piece) + "_" + filename);
-                                    try (PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new java.io.FileOutputStream(csvOutputFile), StandardCharsets.UTF_8)))) {
-                                        pw.write('\uFEFF');
-                                        OutputData.writeCSV(pw, chunk);
-                                    }
-                                }
-                            } catch (Exception spExc) {
-                                logIt("Split CSV error, check your chunk size");
-                            }
-                        } else {
-                            File csvOutputFile = new File(filename);
-                            try (PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new java.io.FileOutputStream(csvOutputFile), StandardCharsets.UTF_8)))) {
-                                pw.write('\uFEFF');
-                                OutputData.writeCSV(pw, csvData);
-                            }
-                        }
-                    } else {
-                        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)))) {
-                            OutputData.writeCSV(pw, csvData);
-                        }
-                    }
+                    System.err.println("Roll bytes must be a size of at least one byte (example: 512k, 1g)");
+                    System.exit(1);
                 }
+            }
 
-                if (cmd.hasOption("h"))
+            if (cmd.hasOption("buffer-size"))
+                JSONRoller.bufferSize = (int) Math.min(parseByteSize(cmd.getOptionValue("buffer-size")), Integer.MAX_VALUE - 16);
+            
+            boolean tableOutput = cmd.hasOption("c") || cmd.hasOption("t") || cmd.hasOption("m") || cmd.hasOption("j") || cmd.hasOption("h");
+            boolean streamTable = tableOutput && cmd.hasOption("stream");
+            long memoryBudget = 0;
+            if (cmd.hasOption("memory-budget"))
+                memoryBudget = parseByteSize(cmd.getOptionValue("memory-budget"));
+            if (tableOutput)
+            {
+                RowFilter filter = null;
+                if (cmd.hasOption("f"))
                 {
-                    String optionalArg = cmd.getOptionValue("h");
-                    if (optionalArg != null)
+                    try
                     {
-                        File htmlOutputFile = new File(optionalArg);
-                        tableName = filenameWithoutExtension(optionalArg);
-                        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new java.io.FileOutputStream(htmlOutputFile), StandardCharsets.UTF_8)))) {
-                            OutputData.writeHTML(tableName, pw, csvData);
-                        }
-                    } else {
-                        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)))) {
-                            OutputData.writeHTML(tableName, pw, csvData);
-                        }
+                        filter = RowFilter.compile(cmd.getOptionValue("f"));
+                    } catch (IllegalArgumentException filterEx) {
+                        System.err.println("Filter Error: " + filterEx.getMessage());
+                        System.exit(1);
                     }
                 }
-
-                if (cmd.hasOption("j"))
+                JSONRoller.tableBuilder = new TableBuilder(filter, memoryBudget);
+                if (cmd.hasOption("columns"))
                 {
-                    String optionalArg = cmd.getOptionValue("j");
-                    if (optionalArg != null)
+                    ColumnSelection selection = ColumnSelection.compile(cmd.getOptionValue("columns"));
+                    // columns asked for by name come first, in the order given
+                    registerLeadingColumns(selection.getExactColumns());
+                    JSONRoller.tableBuilder.selectColumns(selection);
+                }
+            }
+            if (streamTable)
+                JSONRoller.tableBuilder.scanOnly();
+            // dissect, merge and properties work on the whole document so they still need every record
+            if (cmd.hasOption("d") || cmd.hasOption("e") || cmd.hasOption("p"))
+                JSONRoller.workingData = new JSONArray();
+            JSONRoller.processingStartAt = System.currentTimeMillis();
+            List<InputSource> sources = new ArrayList<InputSource>();
+            if (cmd.hasOption("i"))
+            {
+                String inputValue = cmd.getOptionValue("i");
+                if (inputValue == null)
+                {
+                    sources.add(InputSource.stdin());
+                } else {
+                    List<String> filenames = Arrays.asList(inputValue.split(","));
+                    Iterator<String> fnIterator = filenames.iterator();
+                    while(fnIterator.hasNext())
                     {
-                        File jsonOutputFile = new File(optionalArg);
-                        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new java.io.FileOutputStream(jsonOutputFile), StandardCharsets.UTF_8)))) {
-                            OutputData.writeJSON(pw, csvData);
-                        }
-                    } else {
-                        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)))) {
-                            OutputData.writeJSON(pw, csvData);
-                        }
+                        String filename = fnIterator.next().trim();
+                        if ("-".equals(filename))
+                            sources.add(InputSource.stdin());
+                        else
+                            sources.add(InputSource.file(filename));
                     }
                 }
-
-                if (cmd.hasOption("t"))
+            }
+            if (cmd.hasOption("u")) 
+            {
+                sources.add(InputSource.url(cmd.getOptionValue("u", "")));
+            }
+            if (streamTable)
+            {
+                // urls and STDIN can only be read once, park them in temp files for the second pass
+                for (InputSource source : sources)
                 {
-                    String optionalArg = cmd.getOptionValue("t");
-                    if (optionalArg != null)
+                    try
                     {
-                        File tsvOutputFile = new File(optionalArg);
-                        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new java.io.FileOutputStream(tsvOutputFile), StandardCharsets.UTF_8)))) {
-                            OutputData.writeTSV(pw, csvData);
-                        }
-                    } else {
-                        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)))) {
-                            OutputData.writeTSV(pw, csvData);
-                        }
+                        source.spill();
+                    } catch (Exception spillEx) {
+                        System.err.println("Error reading: " + source.getName() + " (" + spillEx.getLocalizedMessage() + ")");
                     }
                 }
-                if (cmd.hasOption("m"))
+            }
+            String sourceTableName = readInputs(sources);
+            if (sourceTableName != null)
+                tableName = sourceTableName;
+            if (JSONRoller.recordsRead == 0)
+            {
+                System.err.println("You must specify an input file -i [filename] or url -u [url] use -? for help!");
+                System.exit(0);
+            } else {
+                logIt("Root Objects: " + JSONRoller.recordsRead);
+
+            }
+
+            // Here are all our pivoted outputs
+            if (tableOutput)
+            {
+                TableBuilder builder = JSONRoller.tableBuilder;
+                builder.finish();
+                if (cmd.hasOption("f"))
                 {
-                    String optionalArg = cmd.getOptionValue("m");
-                    if (optionalArg != null)
+                    String filters = cmd.getOptionValue("f");
+                    logIt("Records Generated: " + String.valueOf(builder.getGeneratedCount()));
+                    logIt("Records Filtered (" + filters + "): " + String.valueOf(builder.getGeneratedCount() - builder.getOutputCount()));
+                    logIt("Records Output: " + String.valueOf(builder.getOutputCount()));
+                } else {
+                    logIt("Records Output: " + String.valueOf(builder.getOutputCount()));
+                }
+                if (streamTable)
+                {
+                    streamTable(cmd, sources, builder.getOrderedColumns(), tableName);
+                } else {
+                    logIt("Columns Created: " + String.join(", ", builder.getOrderedColumns()));
+                    JSONRoller.processingEndAt = System.currentTimeMillis();
+                    long processingDuration = JSONRoller.processingEndAt - JSONRoller.processingStartAt;
+                    logIt("Processing Time: " + String.valueOf(processingDuration) + "ms");
+                    try
                     {
-                        File mdOutputFile = new File(optionalArg);
-                        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new java.io.FileOutputStream(mdOutputFile), StandardCharsets.UTF_8)))) {
-                            OutputData.writeMarkdown(pw, csvData);
-                        }
-                    } else {
-                        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)))) {
-                            OutputData.writeMarkdown(pw, csvData);
-                        }
+                        writeTables(cmd, builder, tableName);
+                    } finally {
+                        builder.cleanUp();
                     }
                 }
             }
+            sources.forEach((source) -> source.cleanUp());
 
             if (cmd.hasOption("d"))
             {
@@ -471,6 +402,15 @@ public class JSONRoller
                         e2.printStackTrace(System.err);
                 }
             }
+            Progress.finish();
+            if (Stats.isEnabled())
+            {
+                long elapsed = System.currentTimeMillis() - JSONRoller.processingStartAt;
+                if ("json".equalsIgnoreCase(cmd.getOptionValue("stats-format", "text")))
+                    Stats.printJSON(System.err, elapsed);
+                else
+                    Stats.printText(System.err, elapsed);
+            }
         } catch (Exception e) {
             if (JSONRoller.verbose)
                 e.printStackTrace(System.err);
@@ -478,24 +418,253 @@ public class JSONRoller
         }
     }
 
-    public static List<List<String[]>> chunkCSV(List<String[]> data, int size)
+    // Write the buffered table to every requested output in one pass
+    public static void writeTables(CommandLine cmd, TableBuilder builder, String tableName) throws Exception
+    {
+        TableWriter writer = fanOut(openTableWriters(cmd, tableName));
+        try
+        {
+            builder.replay(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    // A single writer is used as is, more than one get a thread each
+    public static TableWriter fanOut(List<TableWriter> writers)
+    {
+        if (writers.size() == 1)
+            return writers.get(0);
+        return new FanOutTableWriter(writers);
+    }
+
+    // Create a TableWriter for each requested table format (-c -h -j -t -m)
+    public static List<TableWriter> openTableWriters(CommandLine cmd, String tableName) throws IOException
+    {
+        ArrayList<TableWriter> writers = new ArrayList<TableWriter>();
+        boolean stdoutTaken = false;
+        String[] formats = {"c", "h", "j", "t", "m"};
+        for (String format : formats)
+        {
+            if (!cmd.hasOption(format))
+                continue;
+            String optionalArg = cmd.getOptionValue(format);
+            if (optionalArg == null)
+            {
+                // outputs are written side by side, they can't share STDOUT
+                if (stdoutTaken)
+                {
+                    System.err.println("Only one table can be written to STDOUT, skipping -" + format);
+                    continue;
+                }
+                stdoutTaken = true;
+            }
+            long rollRows = JSONRoller.rollRows;
+            if (format.equals("c") && optionalArg != null && optionalArg.contains(","))
+            {
+                try
+                {
+                    StringTokenizer st = new StringTokenizer(optionalArg, ",");
+                    optionalArg = st.nextToken();
+                    rollRows = Integer.valueOf(st.nextToken().trim()).intValue();
+                } catch (Exception spExc) {
+                    logIt("Split CSV error, check your chunk size");
+                    continue;
+                }
+            }
+            if (optionalArg != null && (rollRows > 0 || JSONRoller.rollBytes > 0) && (format.equals("c") || format.equals("t") || format.equals("j")))
+            {
+                Stats.Stage stage = Stats.stage("write " + formatName(format));
+                writers.add(stage.wrap(new RollingTableWriter(optionalArg, rollRows, JSONRoller.rollBytes, format.equals("c"), cmd.hasOption("roll-gzip"), rollingFormat(cmd, format), stage)));
+                continue;
+            }
+            if (format.equals("h") && cmd.hasOption("html-shard"))
+            {
+                if (optionalArg != null)
+                {
+                    int limit = Integer.valueOf(cmd.getOptionValue("html-shard")).intValue();
+                    Stats.Stage stage = Stats.stage("write html");
+                    writers.add(stage.wrap(new ShardedHTMLTableWriter(optionalArg, limit, cmd.getOptionValue("html-style"), stage)));
+                    continue;
+                }
+                System.err.println("--html-shard needs a filename for -h, writing a single page to STDOUT");
+            }
+            Stats.Stage stage = Stats.stage("write " + formatName(format));
+            PrintWriter pw = openOutput(optionalArg, format.equals("c") && optionalArg != null, stage);
+            if (format.equals("c"))
+                writers.add(stage.wrap(new CSVTableWriter(pw)));
+            else if (format.equals("h"))
+                writers.add(stage.wrap(openHTMLWriter(cmd.getOptionValue("html-style"), optionalArg != null ? filenameWithoutExtension(optionalArg) : tableName, pw)));
+            else if (format.equals("j"))
+                writers.add(stage.wrap(new JSONTableWriter(pw, cmd.getOptionValue("json-style", JSONTableWriter.STYLE_PRETTY))));
+            else if (format.equals("t"))
+                writers.add(stage.wrap(new TSVTableWriter(pw)));
+            else if (format.equals("m"))
+                writers.add(stage.wrap(new MarkdownTableWriter(pw, Integer.valueOf(cmd.getOptionValue("md-width", "0").trim()).intValue())));
+        }
+        return writers;
+    }
+
+    public static boolean isHTMLStyle(String style)
+    {
+        return "table".equals(style) || "virtual".equals(style);
+    }
+
+    // The -h writer for the --html-style asked for
+    public static TableWriter openHTMLWriter(String style, String tableName, PrintWriter pw)
+    {
+        if ("virtual".equals(style))
+            return new VirtualHTMLTableWriter(tableName, pw);
+        return new HTMLTableWriter(tableName, pw);
+    }
+
+    // The writer used for each file of a rolling -c, -t or -j output
+    private static Function<PrintWriter, TableWriter> rollingFormat(CommandLine cmd, String format)
+    {
+        if (format.equals("c"))
+            return (pw) -> new CSVTableWriter(pw);
+        if (format.equals("t"))
+            return (pw) -> new TSVTableWriter(pw);
+        String style = cmd.getOptionValue("json-style", JSONTableWriter.STYLE_PRETTY);
+        return (pw) -> new JSONTableWriter(pw, style);
+    }
+
+    // Second pass of a --stream run: read every input again and write rows as soon as they are flattened
+    public static void streamTable(CommandLine cmd, List<InputSource> sources, List<String> columns, String tableName) throws Exception
+    {
+        logIt("Columns Created: " + String.join(", ", columns));
+        TableWriter writer = fanOut(openTableWriters(cmd, tableName));
+        // The records were already counted and kept (if needed) by the first pass
+        JSONArray firstPassData = JSONRoller.workingData;
+        long firstPassRecords = JSONRoller.recordsRead;
+        JSONRoller.workingData = null;
+        try
+        {
+            TableBuilder writeBuilder = new TableBuilder(JSONRoller.tableBuilder.getFilter(), JSONRoller.tableBuilder.getMemoryBudget());
+            writeBuilder.selectColumns(JSONRoller.tableBuilder.getColumnSelection());
+            writeBuilder.writeTo(columns, writer);
+            JSONRoller.tableBuilder = writeBuilder;
+            readInputs(sources);
+            writeBuilder.finish();
+            writer.finish();
+        } finally {
+            writer.close();
+            JSONRoller.workingData = firstPassData;
+            JSONRoller.recordsRead = firstPassRecords;
+        }
+        JSONRoller.processingEndAt = System.currentTimeMillis();
+        long processingDuration = JSONRoller.processingEndAt - JSONRoller.processingStartAt;
+        logIt("Processing Time: " + String.valueOf(processingDuration) + "ms");
+    }
+
+    // Name of a table format option as shown in the --stats report
+    private static String formatName(String format)
     {
-        ArrayList<List<String[]>> returnChunks = new ArrayList<List<String[]>>();
-        int startSpot = 1;
-        int remainingRecords = data.size() - 1;
-        String[] header = data.get(0);
-        int chunks = (data.size() / size) + 1;
-        for (int i = 0; i < chunks; i++)
+        switch (format)
         {
-            List<String[]> sublist = new LinkedList<String[]>();
-            int to = startSpot + ((size < remainingRecords) ? size : remainingRecords);
-            sublist.add(header);
-            sublist.addAll(data.subList(startSpot, to));
-            startSpot += sublist.size() - 1;
-            remainingRecords -= sublist.size() - 1;
-            returnChunks.add(sublist);
+            case "c": return "csv";
+            case "h": return "html";
+            case "j": return "json";
+            case "t": return "tsv";
+            default: return "markdown";
         }
-        return returnChunks;
+    }
+
+    // Opens a UTF-8 writer on a file, or STDOUT when the filename is null
+    public static PrintWriter openOutput(String filename, boolean byteOrderMark) throws IOException
+    {
+        return openOutput(filename, byteOrderMark, null);
+    }
+
+    // Same as above, the bytes written are counted for stage (may be null) with --stats or --progress
+    public static PrintWriter openOutput(String filename, boolean byteOrderMark, Stats.Stage stage) throws IOException
+    {
+        if (filename == null)
+            return new PrintWriter(UTF8ChannelWriter.stdout(JSONRoller.bufferSize, stage));
+        PrintWriter pw = new PrintWriter(UTF8ChannelWriter.file(new File(filename).toPath(), JSONRoller.bufferSize, stage));
+        if (byteOrderMark)
+            pw.write('\uFEFF');
+        return pw;
+    }
+
+    // Read every input and merge the results back in input order, returns the table name of the last input read.
+    // Inputs are read on a pool of worker threads when there is more than one.
+    public static String readInputs(List<InputSource> sources) throws Exception
+    {
+        String tableName = null;
+        boolean keepRecords = (JSONRoller.workingData != null);
+        Progress.expect(sources);
+        if (sources.size() < 2 || JSONRoller.threads < 2)
+        {
+            // one at a time, so the rows can go straight into the main builder
+            for (InputSource source : sources)
+                tableName = mergeSource(new SourceReader(source, JSONRoller.tableBuilder, keepRecords).call(), tableName);
+            return tableName;
+        }
+        int poolSize = Math.min(JSONRoller.threads, sources.size());
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        try
+        {
+            // keep a bounded window of inputs in flight, finished ones wait for their turn to merge
+            ArrayDeque<Future<SourceReader>> inFlight = new ArrayDeque<Future<SourceReader>>();
+            Iterator<InputSource> sourceIterator = sources.iterator();
+            while (sourceIterator.hasNext() || !inFlight.isEmpty())
+            {
+                while (sourceIterator.hasNext() && inFlight.size() < poolSize * 2)
+                {
+                    TableBuilder partial = (JSONRoller.tableBuilder != null) ? JSONRoller.tableBuilder.newPartial(poolSize * 2) : null;
+                    inFlight.add(pool.submit(new SourceReader(sourceIterator.next(), partial, keepRecords)));
+                }
+                tableName = mergeSource(inFlight.poll().get(), tableName);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return tableName;
+    }
+
+    private static String mergeSource(SourceReader reader, String tableName) throws Exception
+    {
+        JSONRoller.recordsRead += reader.getRecordCount();
+        if (JSONRoller.workingData != null)
+            reader.getRecords().forEach((record) -> JSONRoller.workingData.put(record));
+        registerLeadingColumns(reader.getLeadingColumnsSeen());
+        if (JSONRoller.tableBuilder != null && reader.getBuilder() != JSONRoller.tableBuilder)
+            JSONRoller.tableBuilder.merge(reader.getBuilder(), reader.getColumnsSeen());
+        else
+            registerColumns(reader.getColumnsSeen());
+        String sourceTableName = reader.getSource().getTableName();
+        return (sourceTableName != null) ? sourceTableName : tableName;
+    }
+
+    // A whole number from min to max
+    private static boolean isCount(String value, long min, long max)
+    {
+        try
+        {
+            long count = Long.parseLong(value.trim());
+            return count >= min && count <= max;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    // Parse a size like 512k, 64m or 2g into bytes, a plain number is taken as bytes
+    public static long parseByteSize(String size)
+    {
+        String sizeLC = size.trim().toLowerCase();
+        long multiplier = 1;
+        if (sizeLC.endsWith("b"))
+            sizeLC = sizeLC.substring(0, sizeLC.length() - 1);
+        if (sizeLC.endsWith("k"))
+            multiplier = 1024L;
+        else if (sizeLC.endsWith("m"))
+            multiplier = 1024L * 1024L;
+        else if (sizeLC.endsWith("g"))
+            multiplier = 1024L * 1024L * 1024L;
+        if (multiplier > 1)
+            sizeLC = sizeLC.substring(0, sizeLC.length() - 1);
+        return Long.valueOf(sizeLC.trim()).longValue() * multiplier;
     }
 
     public static String filenameExtension(String filename)
@@ -534,74 +703,15 @@ public class JSONRoller
 
     public static JSONArray filterData(JSONArray source, String filtersString)
     {
-        String[] filters = filtersString.split(",");
-        if (filters.length > 0)
+        RowFilter filter = RowFilter.compile(filtersString);
+        JSONArray ra = new JSONArray();
+        for (int s = 0; s < source.length(); s++)
         {
-            JSONArray ra = new JSONArray();
-            for (int s = 0; s < source.length(); s++)
-            {
-                boolean filterPass = true;
-                JSONObject row = source.getJSONObject(s);
-                try
-                {
-                    for(int i = 0; i < filters.length; i++)
-                    {
-                        String filter = filters[i];
-                        if (filter.contains("!=")) 
-                        {
-                            String[] st = splitString(filter, "!=");
-                            String key = st[0];
-                            String value = st[1];
-                            if (row.optString(key, "").equals(value))
-                                filterPass = false;
-                        } else if (filter.contains(">=")) {
-                            String[] st = splitString(filter, ">=");
-                            String key = st[0];
-                            double value = Double.valueOf(st[1]).doubleValue();
-                            double rowValue = Double.valueOf(row.optString(key, "0")).doubleValue();
-                            if (rowValue < value)
-                                filterPass = false;
-                        } else if (filter.contains("<=")) {
-                            String[] st = splitString(filter, "<=");
-                            String key = st[0];
-                            double value = Double.valueOf(st[1]).doubleValue();
-                            double rowValue = Double.valueOf(row.optString(key, "0")).doubleValue();
-                            if (rowValue > value)
-                                filterPass = false;
-                        } else if (filter.contains("=")) {
-                            StringTokenizer st = new StringTokenizer(filter, "=");
-                            String key = st.nextToken();
-                            String value = st.nextToken();
-                            if (!row.optString(key, "").equals(value))
-                                filterPass = false;
-                        } else if (filter.contains(">")) {
-                            StringTokenizer st = new StringTokenizer(filter, ">");
-                            String key = st.nextToken();
-                            double value = Double.valueOf(st.nextToken()).doubleValue();
-                            double rowValue = Double.valueOf(row.optString(key, "0")).doubleValue();
-                            if (rowValue <= value)
-                                filterPass = false;
-                        } else if (filter.contains("<")) {
-                            StringTokenizer st = new StringTokenizer(filter, "<");
-                            String key = st.nextToken();
-                            double value = Double.valueOf(st.nextToken()).doubleValue();
-                            double rowValue = Double.valueOf(row.optString(key, "0")).doubleValue();
-                            if (rowValue >= value)
-                                filterPass = false;
-                        }
-                    }
-                } catch (Exception e) {
-                    if (JSONRoller.verbose)
-                        e.printStackTrace(System.err);
-                }
-                if (filterPass)
-                    ra.put(row);
-            };
-            return ra;
-        } else {
-            System.err.println("Empty Filter String");
-            return source;
-        }
+            JSONObject row = source.getJSONObject(s);
+            if (filter.matches(row))
+                ra.put(row);
+        };
+        return ra;
     }
 
     // For splitting a string on multichar delimiters
@@ -667,6 +777,31 @@ public class JSONRoller
         return returnKey;
     }
 
+    public static int getThreads()
+    {
+        return JSONRoller.threads;
+    }
+
+    public static char getCSVSeparator()
+    {
+        return JSONRoller.csvSeparator;
+    }
+
+    public static int getMultilineLimit()
+    {
+        return JSONRoller.multilineLimit;
+    }
+
+    public static int getBufferSize()
+    {
+        return JSONRoller.bufferSize;
+    }
+
+    public static boolean isVerbose()
+    {
+        return JSONRoller.verbose;
+    }
+
     public static void logIt(String text)
     {
         if (JSONRoller.verbose)
@@ -719,60 +854,35 @@ public class JSONRoller
 
     public static JSONArray readJSONData(String data)
     {
-        try
+        JSONArray arr = new JSONArray();
+        try (JSONRecordReader reader = JSONRecordReader.of(data))
         {
-            if (data.startsWith("["))
-            {
-                logIt("Format detected: Root JSONArray");
-                JSONArray ary = new JSONArray(data);
-                return ary;
-            } else if (data.startsWith("{")) {
-                if (data.contains("}\n{") || data.contains("}\r\n{"))
-                {
-                    logIt("Format detected: 1 object per line");
-                    StringTokenizer st = new StringTokenizer(data, "\r\n");
-                    JSONArray arr = new JSONArray();
-                    while(st.hasMoreTokens())
-                    {
-                        String str = st.nextToken();
-                        try
-                        {
-                            if (!"".equals(str) && str != null)
-                            {
-                                arr.put(new JSONObject(str));
-                            }
-                        } catch (Exception strEx) {}
-                    }
-                    return arr;
-                } else {
-                    logIt("Format detected: Root JSONObject");
-                    JSONObject obj = new JSONObject(data);
-                    JSONArray ja = new JSONArray();
-                    ja.put(obj);
-                    return ja;
-                }
-            }
+            Object record;
+            while ((record = reader.next()) != null)
+                arr.put(record);
         } catch (Exception e) {
             if (JSONRoller.verbose)
                 e.printStackTrace(System.err);
         }
-        return new JSONArray();
+        return arr;
     }
 
+    // Goes to the calling thread's ColumnRegistry.Batch when one has been begun
     public static void registerColumn(String name)
     {
         if (name != null)
-        {
-            if (!JSONRoller.columnOrder.contains(name))
-            {
-                columnOrder.add(name);
-            }
-        }
+            JSONRoller.columnOrder.register(name);
     }
 
     public static void registerColumns(Collection<String> names)
     {
-        names.forEach((name) -> registerColumn(name));
+        JSONRoller.columnOrder.registerAll(names);
+    }
+
+    // CSV headers and columns asked for by name, these come before columns found in JSON records
+    public static void registerLeadingColumns(Collection<String> names)
+    {
+        JSONRoller.columnOrder.registerAllLeading(names);
     }
 
     /*
@@ -856,57 +966,61 @@ public class JSONRoller
         return true;
     }
 
+    /*
+        Every row goes through one RowFlattener and keeps only its (column id, value)
+        pairs, the header isn't known until the last row so nothing can be written
+        sooner. A row has no map of its own.
+    */
     public static List<String[]> JSONArrayFlatten(JSONArray jarray) throws Exception
     {
-        HashSet<String> columns = new HashSet<String>();
-        ArrayList<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+        RowFlattener flattener = new RowFlattener(new ColumnDictionary());
+        ColumnDictionary dictionary = flattener.getDictionary();
+        BitSet used = new BitSet();
+        ArrayList<int[]> rowIds = new ArrayList<int[]>();
+        ArrayList<String[]> rowValues = new ArrayList<String[]>();
         for (int m = 0; m < jarray.length(); m++)
         {
             Object value = jarray.get(m);
             if (value != null)
             {
-                if (value instanceof JSONObject)
-                {
-                    Map<String, String> objectMapped = JSONObjectFlatten(null, (JSONObject) value);
-                    Set<String> keySet = objectMapped.keySet();
-                    registerColumns(keySet);
-                    columns.addAll(keySet);
-                    rows.add(objectMapped);
-                } else if (value instanceof JSONArray) {
-                    Map<String, String> arrayMapped = JSONArrayFlatten(null, (JSONArray) value);
-                    Set<String> keySet = arrayMapped.keySet();
-                    registerColumns(keySet);
-                    columns.addAll(keySet);
-                    arrayMapped = fillNulls(columns, arrayMapped);
-                    rows.add(arrayMapped);
-                } else {
-                    Map<String, String> stringMapped = objectToStringMap("[" + String.valueOf(m) + "]", value);
-                    Set<String> keySet = stringMapped.keySet();
-                    registerColumns(keySet);
-                    columns.addAll(keySet);
-                    rows.add(stringMapped);
-                }
-            }
-        }
-        ArrayList<String> orderedKeys = new ArrayList<String>();
-        for(int i = 0; i < JSONRoller.columnOrder.size(); i ++)
-        {
-            String orderedKey = JSONRoller.columnOrder.get(i);
-            if (columns.contains(orderedKey))
-            {
-                orderedKeys.add(orderedKey);
+                flattener.flatten(value, m, null);
+                int pairs = flattener.getPairs();
+                int[] ids = Arrays.copyOf(flattener.getIds(), pairs);
+                for (int p = 0; p < pairs; p++)
+                    used.set(ids[p]);
+                rowIds.add(ids);
+                rowValues.add(Arrays.copyOf(flattener.getValues(), pairs));
             }
         }
+        HashSet<String> columns = new HashSet<String>();
+        for (int id = used.nextSetBit(0); id >= 0; id = used.nextSetBit(id + 1))
+            columns.add(dictionary.name(id));
+        List<String> orderedKeys = orderedColumns(columns);
         logIt("Columns Created: " + String.join(", ", orderedKeys));
+        int[] position = new int[dictionary.size()];
+        for (int c = 0; c < orderedKeys.size(); c++)
+            position[dictionary.id(orderedKeys.get(c))] = c;
         ArrayList<String[]> dataLines = new ArrayList<String[]>();
         dataLines.add(0,orderedKeys.toArray(new String[orderedKeys.size()]));
-        for(Map<String, String> mapRow : rows)
+        for (int r = 0; r < rowIds.size(); r++)
         {
-            dataLines.add(orderMap(orderedKeys, mapRow));
+            int[] ids = rowIds.get(r);
+            String[] values = rowValues.get(r);
+            String[] line = new String[orderedKeys.size()];
+            Arrays.fill(line, "");
+            for (int p = 0; p < ids.length; p++)
+                line[position[ids[p]]] = values[p];
+            dataLines.add(line);
         }
         return dataLines;
     }
 
+    // Registered column names that are actually in use, in the order they were first seen
+    public static List<String> orderedColumns(Set<String> columns)
+    {
+        return JSONRoller.columnOrder.ordered(columns);
+    }
+
     // Check to make sure map contains all the keys, if not fill them with blanks.
     public static String[] orderMap(List<String> keys, Map<String, String> map)
     {
@@ -941,81 +1055,123 @@ public class JSONRoller
         return returnMap;
     }
 
-    // Recursive function for flattening JSONArrays. 
+    // Flattens a JSONArray into column name / value pairs, fieldName is the array's own column name
     public static Map<String, String> JSONArrayFlatten(String fieldName, JSONArray jarray) throws Exception
     {
-        registerColumn(fieldName);
+        return JSONArrayFlatten(fieldName, jarray, null);
+    }
+
+    // selection is where fieldName sits in the --columns trie, null to keep every column
+    public static Map<String, String> JSONArrayFlatten(String fieldName, JSONArray jarray, ColumnSelection.Node selection) throws Exception
+    {
         HashMap<String, String> returnMap = new HashMap<String, String>();
-        for (int m = 0; m < jarray.length(); m++)
-        {
-            Object value = jarray.get(m);
-            if (value != null)
-            {
-                if (value instanceof JSONObject)
-                {
-                    JSONObject subJO = (JSONObject) value;
-                    if (fieldName != null)
-                        returnMap.putAll(JSONObjectFlatten(fieldName + "[" + String.valueOf(m) + "]", subJO));
-                    else
-                        returnMap.putAll(JSONObjectFlatten("[" + String.valueOf(m) + "]", subJO));
-                } else if (value instanceof JSONArray) {
-                    JSONArray subJA = (JSONArray) value;
-                    if (fieldName != null)
-                        returnMap.putAll(JSONArrayFlatten(fieldName + "[" + String.valueOf(m) + "]", subJA));
-                    else
-                        returnMap.putAll(JSONArrayFlatten("[" + String.valueOf(m) + "]", subJA));
-                } else {
-                    if (fieldName != null)
-                        returnMap.putAll(objectToStringMap(fieldName + "[" + String.valueOf(m) + "]", value));
-                    else
-                        returnMap.putAll(objectToStringMap("[" + String.valueOf(m) + "]", value));
-                }
-            }
-        }
+        StringBuilder path = new StringBuilder();
+        if (fieldName != null)
+            path.append(fieldName);
+        flattenArray(path, jarray, selection, returnMap);
         return returnMap;
-
     }
 
-    // Recursive function for flattening JSONObjects. 
+    // Flattens a JSONObject into column name / value pairs, fieldName is the object's own column name
     public static Map<String, String> JSONObjectFlatten(String fieldName, JSONObject jo) throws Exception
     {
-        registerColumn(fieldName);
+        return JSONObjectFlatten(fieldName, jo, null);
+    }
+
+    // selection is where fieldName sits in the --columns trie, null to keep every column
+    public static Map<String, String> JSONObjectFlatten(String fieldName, JSONObject jo, ColumnSelection.Node selection) throws Exception
+    {
         HashMap<String, String> returnMap = new HashMap<String, String>();
+        StringBuilder path = new StringBuilder();
+        if (fieldName != null)
+            path.append(fieldName);
+        flattenObject(path, jo, selection, returnMap);
+        return returnMap;
+    }
+
+    /*
+        One pass over the record. Every leaf goes straight into the one map and
+        the column name is grown and cut back on a single StringBuilder, nothing
+        is built per level and copied up. A later value for the same column
+        name replaces an earlier one.
+    */
+    private static void flattenObject(StringBuilder path, JSONObject jo, ColumnSelection.Node selection, Map<String, String> into) throws Exception
+    {
+        if (selection != null && selection.isAll())
+            selection = null;
+        if (path.length() > 0)
+            registerColumn(path.toString());
+        int length = path.length();
         for(Iterator<String> fieldIterator = jo.keys(); fieldIterator.hasNext(); )
         {
             String field = fieldIterator.next();
-            Object value = jo.get(field);
-            if (value != null)
+            ColumnSelection.Node valueSelection = null;
+            if (selection != null)
             {
-                if (value instanceof JSONObject)
-                {
-                    JSONObject subJO = (JSONObject) value;
-                    if (fieldName != null)
-                        returnMap.putAll(JSONObjectFlatten(fieldName + "." + field, subJO));
-                    else
-                        returnMap.putAll(JSONObjectFlatten(field, subJO));
-                } else if (value instanceof JSONArray) {
-                    JSONArray subJA = (JSONArray) value;
-                    if (fieldName != null)
-                        returnMap.putAll(JSONArrayFlatten(fieldName + "." + field, subJA));
-                    else
-                        returnMap.putAll(JSONArrayFlatten(field, subJA));
-                } else {
-                    if (fieldName != null)
-                        returnMap.putAll(objectToStringMap(fieldName + "." + field, value));
-                    else
-                        returnMap.putAll(objectToStringMap(field, value));
-                }
+                // nothing under this key was asked for, don't even look at it
+                valueSelection = selection.child(field);
+                if (valueSelection == null)
+                    continue;
             }
+            if (length > 0)
+                path.append('.');
+            path.append(field);
+            flattenValue(path, jo.get(field), valueSelection, into);
+            path.setLength(length);
         }
-        return returnMap;
+    }
+
+    private static void flattenArray(StringBuilder path, JSONArray jarray, ColumnSelection.Node selection, Map<String, String> into) throws Exception
+    {
+        if (selection != null && selection.isAll())
+            selection = null;
+        if (path.length() > 0)
+            registerColumn(path.toString());
+        int length = path.length();
+        for (int m = 0; m < jarray.length(); m++)
+        {
+            ColumnSelection.Node valueSelection = null;
+            if (selection != null)
+            {
+                // nothing under this position was asked for, don't even look at it
+                valueSelection = selection.index(m);
+                if (valueSelection == null)
+                    continue;
+            }
+            path.append('[').append(m).append(']');
+            flattenValue(path, jarray.get(m), valueSelection, into);
+            path.setLength(length);
+        }
+    }
+
+    private static void flattenValue(StringBuilder path, Object value, ColumnSelection.Node selection, Map<String, String> into) throws Exception
+    {
+        if (value instanceof JSONObject)
+            flattenObject(path, (JSONObject) value, selection, into);
+        else if (value instanceof JSONArray)
+            flattenArray(path, (JSONArray) value, selection, into);
+        else if (value != null)
+            flattenLeaf(path.toString(), value, selection, into);
     }
 
     // Make a map out of a String field, if that string field is a query string, call queryStringToStringMap
     public static Map<String, String> objectToStringMap(String fieldName, Object obj)
     {
-        registerColumn(fieldName);
+        return objectToStringMap(fieldName, obj, null);
+    }
+
+    // A leaf is only kept when it was selected, out of a query string only the selected parameters are
+    public static Map<String, String> objectToStringMap(String fieldName, Object obj, ColumnSelection.Node selection)
+    {
         HashMap<String, String> returnMap = new HashMap<String, String>();
+        flattenLeaf(fieldName, obj, selection, returnMap);
+        return returnMap;
+    }
+
+    private static void flattenLeaf(String fieldName, Object obj, ColumnSelection.Node selection, Map<String, String> into)
+    {
+        if (selection == null || selection.isAll())
+            registerColumn(fieldName);
         if (obj != null)
         {
             String objString = obj.toString();
@@ -1023,19 +1179,35 @@ public class JSONRoller
             {
                 if (objString.startsWith("?") && objString.contains("="))
                 {
-                    returnMap.putAll(queryStringToStringMap(fieldName, objString));
-                } else {
-                    returnMap.put(fieldName, objString);
+                    Map<String, String> params = queryStringToStringMap(fieldName, objString);
+                    if (selection != null && !selection.isAll())
+                    {
+                        for (Map.Entry<String, String> param : params.entrySet())
+                        {
+                            ColumnSelection.Node paramSelection = selection.child(param.getKey().substring(fieldName.length() + 1));
+                            if (paramSelection != null && paramSelection.isAll())
+                                into.put(param.getKey(), param.getValue());
+                        }
+                    } else {
+                        into.putAll(params);
+                    }
+                } else if (selection == null || selection.isAll()) {
+                    into.put(fieldName, objString);
                 }
             }
         }
-        return returnMap;
     }
 
     // Converts a query string to a Map
     public static Map<String, String> queryStringToStringMap(String fieldName, String queryString)
     {
         registerColumn(fieldName);
+        return queryStringParams(fieldName, queryString);
+    }
+
+    // The parameters of a query string as "fieldName.key" columns, nothing is registered
+    public static Map<String, String> queryStringParams(String fieldName, String queryString)
+    {
         HashMap<String, String> returnMap = new HashMap<String, String>();
         try
         {
@@ -0,0 +1,240 @@
+package org.openstatic;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+/*
+    Writes the table as JSON one row at a time, nothing is kept but the row
+    waiting to be written.
+
+    pretty  - a JSON array laid out exactly like JSONArray.toString(2), which
+              is what -j has always written (the default)
+    compact - the same array without any whitespace
+    ndjson  - one compact object per line, no surrounding array
+
+    Every row has the same columns, so the order the keys come out in (the
+    iteration order of the HashMap inside a JSONObject) is worked out once
+    from the header and the same for every row. Cell values are typed with
+    OutputData.guessType() as before.
+*/
+public class JSONTableWriter implements TableWriter
+{
+    public static final String STYLE_PRETTY = "pretty";
+    public static final String STYLE_COMPACT = "compact";
+    public static final String STYLE_NDJSON = "ndjson";
+
+    private PrintWriter pw;
+    private String style;
+    private int[] keyOrder;
+    private String[] quotedKeys;
+    private StringBuilder sb;
+    private String[] firstRow;
+    private long rowCount;
+
+    public JSONTableWriter(PrintWriter pw)
+    {
+        this(pw, STYLE_PRETTY);
+    }
+
+    public JSONTableWriter(PrintWriter pw, String style)
+    {
+        this.pw = pw;
+        this.style = style;
+        this.sb = new StringBuilder();
+    }
+
+    public static boolean isStyle(String style)
+    {
+        return STYLE_PRETTY.equals(style) || STYLE_COMPACT.equals(style) || STYLE_NDJSON.equals(style);
+    }
+
+    @Override
+    public void writeHeader(String[] columns) throws IOException
+    {
+        // a JSONObject keeps its keys in a HashMap, filled in column order
+        HashMap<String, Integer> keys = new HashMap<String, Integer>();
+        for (int i = 0; i < columns.length; i++)
+            keys.put(columns[i], Integer.valueOf(i));
+        this.keyOrder = new int[keys.size()];
+        this.quotedKeys = new String[keys.size()];
+        int k = 0;
+        for (String key : keys.keySet())
+        {
+            this.keyOrder[k] = keys.get(key).intValue();
+            this.quotedKeys[k] = quote(new StringBuilder(), key).toString() + (STYLE_PRETTY.equals(this.style) ? ": " : ":");
+            k++;
+        }
+    }
+
+    @Override
+    public void writeRow(String[] row) throws IOException
+    {
+        this.rowCount++;
+        if (STYLE_NDJSON.equals(this.style))
+        {
+            this.sb.setLength(0);
+            appendObject(row, -1);
+            this.sb.append('\n');
+        } else if (STYLE_COMPACT.equals(this.style)) {
+            this.sb.setLength(0);
+            this.sb.append((this.rowCount == 1) ? '[' : ',');
+            appendObject(row, -1);
+        } else {
+            // a lone row is laid out differently, so the first one waits for a second
+            if (this.rowCount == 1)
+            {
+                this.firstRow = row;
+                return;
+            }
+            this.sb.setLength(0);
+            if (this.rowCount == 2)
+            {
+                this.sb.append("[\n  ");
+                appendObject(this.firstRow, 2);
+                this.firstRow = null;
+            }
+            this.sb.append(",\n  ");
+            appendObject(row, 2);
+        }
+        this.pw.append(this.sb);
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        this.sb.setLength(0);
+        if (STYLE_COMPACT.equals(this.style))
+        {
+            this.sb.append((this.rowCount == 0) ? "[]" : "]");
+        } else if (STYLE_PRETTY.equals(this.style)) {
+            if (this.rowCount == 0)
+            {
+                this.sb.append("[]");
+            } else if (this.rowCount == 1) {
+                this.sb.append('[');
+                appendObject(this.firstRow, 0);
+                this.sb.append(']');
+                this.firstRow = null;
+            } else {
+                this.sb.append("\n]");
+            }
+        }
+        this.pw.append(this.sb);
+        this.pw.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.pw.close();
+    }
+
+    // One row object, indent is the indent of the object itself or -1 for compact output
+    private void appendObject(String[] row, int indent)
+    {
+        StringBuilder sb = this.sb;
+        int keys = this.keyOrder.length;
+        if (keys == 0)
+        {
+            sb.append("{}");
+            return;
+        }
+        if (indent < 0 || keys == 1)
+        {
+            sb.append('{');
+            for (int k = 0; k < keys; k++)
+            {
+                if (k > 0)
+                    sb.append(',');
+                sb.append(this.quotedKeys[k]);
+                appendValue(row[this.keyOrder[k]]);
+            }
+            sb.append('}');
+            return;
+        }
+        sb.append('{');
+        for (int k = 0; k < keys; k++)
+        {
+            if (k > 0)
+                sb.append(',');
+            sb.append('\n');
+            for (int i = 0; i < indent + 2; i++)
+                sb.append(' ');
+            sb.append(this.quotedKeys[k]);
+            appendValue(row[this.keyOrder[k]]);
+        }
+        sb.append('\n');
+        for (int i = 0; i < indent; i++)
+            sb.append(' ');
+        sb.append('}');
+    }
+
+    private void appendValue(String cell)
+    {
+        Object value = OutputData.guessType(cell);
+        if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite()))
+            value = cell;
+        if (value instanceof Number)
+            this.sb.append(org.json.JSONObject.numberToString((Number) value));
+        else if (value instanceof Boolean)
+            this.sb.append(value.toString());
+        else
+            quote(this.sb, (String) value);
+    }
+
+    // The same escaping as JSONObject.quote()
+    private static StringBuilder quote(StringBuilder sb, String text)
+    {
+        sb.append('"');
+        char b;
+        char c = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++)
+        {
+            b = c;
+            c = text.charAt(i);
+            switch (c)
+            {
+                case '\\':
+                case '"':
+                    sb.append('\\');
+                    sb.append(c);
+                    break;
+                case '/':
+                    if (b == '<')
+                        sb.append('\\');
+                    sb.append(c);
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100'))
+                    {
+                        String hex = Integer.toHexString(c);
+                        sb.append("\\u");
+                        for (int p = hex.length(); p < 4; p++)
+                            sb.append('0');
+                        sb.append(hex);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+        return sb;
+    }
+}
@@ -0,0 +1,142 @@
+package org.openstatic;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Column widths come from the longest cell in each column, so by default
+    every row is gathered until finish() and the table is written in one go.
+
+    With a width cap (--md-width) the widths only come from the header and the
+    first SAMPLE_ROWS rows, no column is wider than the cap (or its header
+    name, whichever is longer), and every row after the sample is written as
+    soon as it arrives. Cells longer than that are cut, header names never
+    are. A later cell longer than its column (but not the cap) is written
+    whole, the table is still valid Markdown, only that row is out of line.
+
+    Padding and the dashes under the header are copied from fixed buffers
+    instead of being built per cell.
+*/
+public class MarkdownTableWriter implements TableWriter
+{
+    public static final int SAMPLE_ROWS = 1000;
+
+    private static final char[] SPACES = new char[256];
+    private static final char[] DASHES = new char[256];
+    static
+    {
+        Arrays.fill(SPACES, ' ');
+        Arrays.fill(DASHES, '-');
+    }
+
+    private PrintWriter pw;
+    private int cap;
+    private int sampleRows;
+    private List<String[]> dataLines;
+    private int[] columnSizes;
+    private int[] columnCaps;
+
+    public MarkdownTableWriter(PrintWriter pw)
+    {
+        this(pw, 0);
+    }
+
+    // maxWidth caps the width of every column and streams the rows, 0 for no cap
+    public MarkdownTableWriter(PrintWriter pw, int maxWidth)
+    {
+        this.pw = pw;
+        this.cap = (maxWidth > 0) ? maxWidth : Integer.MAX_VALUE;
+        this.sampleRows = (maxWidth > 0) ? SAMPLE_ROWS : Integer.MAX_VALUE;
+        this.dataLines = new ArrayList<String[]>();
+    }
+
+    @Override
+    public void writeHeader(String[] columns) throws IOException
+    {
+        this.dataLines.add(columns);
+    }
+
+    @Override
+    public void writeRow(String[] row) throws IOException
+    {
+        if (this.columnSizes != null)
+        {
+            writeLine(row);
+            return;
+        }
+        this.dataLines.add(row);
+        // the header is in dataLines too
+        if (this.dataLines.size() > this.sampleRows)
+            writeGathered();
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        if (this.columnSizes == null)
+            writeGathered();
+        this.pw.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.pw.close();
+    }
+
+    // Work out the widths from the rows gathered so far and write them, header first
+    private void writeGathered()
+    {
+        String[] header = this.dataLines.get(0);
+        this.columnSizes = new int[header.length];
+        this.columnCaps = new int[header.length];
+        for (int i = 0; i < header.length; i++)
+            this.columnCaps[i] = Math.max(header[i].length(), this.cap);
+        for (String[] row : this.dataLines)
+        {
+            for (int i = 0; i < row.length; i++)
+            {
+                if (row[i].length() > this.columnSizes[i])
+                    this.columnSizes[i] = Math.min(row[i].length(), this.columnCaps[i]);
+            }
+        }
+        for (int i = 0; i < this.columnSizes.length; i++)
+            this.columnSizes[i]++;
+        writeLine(header);
+        for (int i = 0; i < this.columnSizes.length; i++)
+        {
+            this.pw.write("|-");
+            repeat(DASHES, this.columnSizes[i]);
+        }
+        this.pw.println("|");
+        for (int r = 1; r < this.dataLines.size(); r++)
+            writeLine(this.dataLines.get(r));
+        this.dataLines = null;
+    }
+
+    private void writeLine(String[] row)
+    {
+        for (int i = 0; i < row.length; i++)
+        {
+            String value = row[i];
+            int shown = Math.min(value.length(), this.columnCaps[i]);
+            this.pw.write("| ");
+            this.pw.write(value, 0, shown);
+            repeat(SPACES, this.columnSizes[i] - shown);
+        }
+        this.pw.println("|");
+    }
+
+    private void repeat(char[] chars, int count)
+    {
+        while (count > 0)
+        {
+            int n = Math.min(count, chars.length);
+            this.pw.write(chars, 0, n);
+            count -= n;
+        }
+    }
+}
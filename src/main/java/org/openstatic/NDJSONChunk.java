@@ -0,0 +1,250 @@
+package org.openstatic;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import org.json.*;
+
+/*
+    One slice of a large NDJSON file, parsed and flattened on its own.
+
+    Big one-object-per-line files are cut into slices of roughly CHUNK_SIZE
+    bytes that always end just after a newline, so a record is never split
+    between two slices. Every slice is read with positional reads on the same
+    FileChannel and handled on a shared ForkJoinPool, SourceReader then merges
+    the slices back together in file order.
+*/
+public class NDJSONChunk implements Callable<NDJSONChunk>
+{
+    public static final long CHUNK_SIZE = 1 << 22;
+
+    private static ForkJoinPool pool;
+
+    private FileChannel channel;
+    private long start;
+    private long end;
+    private TableBuilder builder;
+    private JSONArray records;
+    private ColumnRegistry.Batch columnsSeen;
+    private long recordCount;
+
+    // builder may be null when no table is being built
+    public NDJSONChunk(FileChannel channel, long start, long end, TableBuilder builder, boolean keepRecords)
+    {
+        this.channel = channel;
+        this.start = start;
+        this.end = end;
+        this.builder = builder;
+        if (keepRecords)
+            this.records = new JSONArray();
+        this.columnsSeen = new ColumnRegistry.Batch();
+    }
+
+    /*
+        Only worth it for one-object-per-line files of at least a couple of slices, and more
+        than one thread.
+
+        The layout is told from the first few bytes instead of running a JSONRecordReader,
+        which would parse the whole document of a big root object just to find out it can't
+        be split. Like the reader, a file is one object per line when its first line is a
+        complete object and the next line that isn't blank starts another '{'. Anything else
+        (a pretty printed object, whose first line doesn't close, more than one object on the
+        first line or a first line longer than a slice) is left to the normal reader.
+    */
+    public static boolean isSplittable(Path path) throws IOException
+    {
+        if (JSONRoller.getThreads() < 2 || Files.size(path) < CHUNK_SIZE * 2)
+            return false;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            return startsWithObjectLines(channel);
+        }
+    }
+
+    private static boolean startsWithObjectLines(FileChannel channel) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        long position = 0;
+        int depth = 0;
+        boolean started = false;
+        boolean closed = false;
+        boolean lineEnded = false;
+        boolean inString = false;
+        boolean escaped = false;
+        while (position < CHUNK_SIZE)
+        {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                return false;
+            for (int i = 0; i < read; i++)
+            {
+                int b = buffer.get(i) & 0xFF;
+                if (position == 0 && i < 3 && (b == 0xEF || b == 0xBB || b == 0xBF))
+                    continue;
+                if (closed)
+                {
+                    // after the first object the line has to end and the next one start another
+                    if (b == '\n')
+                        lineEnded = true;
+                    else if (b != ' ' && b != '\t' && b != '\r')
+                        return (lineEnded && b == '{');
+                    continue;
+                }
+                if (!started)
+                {
+                    if (b == ' ' || b == '\t' || b == '\r' || b == '\n')
+                        continue;
+                    if (b != '{')
+                        return false;
+                    started = true;
+                    depth = 1;
+                    continue;
+                }
+                if (inString)
+                {
+                    if (escaped)
+                        escaped = false;
+                    else if (b == '\\')
+                        escaped = true;
+                    else if (b == '"')
+                        inString = false;
+                } else if (b == '"') {
+                    inString = true;
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                    if (depth == 0)
+                        closed = true;
+                } else if (b == '\n') {
+                    // the first line ended inside the object, a pretty printed root object
+                    return false;
+                }
+            }
+            position += read;
+        }
+        return false;
+    }
+
+    public static synchronized ForkJoinPool pool()
+    {
+        if (NDJSONChunk.pool == null)
+            NDJSONChunk.pool = new ForkJoinPool(JSONRoller.getThreads());
+        return NDJSONChunk.pool;
+    }
+
+    // Position just past the first newline at or after "from", or the end of the file
+    public static long nextLineStart(FileChannel channel, long from) throws IOException
+    {
+        long size = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = from;
+        while (position < size)
+        {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                break;
+            for (int i = 0; i < read; i++)
+            {
+                if (buffer.get(i) == '\n')
+                    return position + i + 1;
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    @Override
+    public NDJSONChunk call() throws Exception
+    {
+        this.columnsSeen.begin();
+        InputStream slice = Stats.READ.wrap(new SliceInputStream(this.channel, this.start, this.end));
+        try (JSONRecordReader reader = JSONRecordReader.lines(new BufferedReader(new InputStreamReader(slice, StandardCharsets.UTF_8.newDecoder()), InputSource.READ_BUFFER_SIZE), this.start))
+        {
+            Object record;
+            while ((record = reader.next()) != null)
+            {
+                this.recordCount++;
+                if (this.records != null)
+                    this.records.put(record);
+                if (this.builder != null)
+                    this.builder.add(record);
+            }
+        } finally {
+            this.columnsSeen.end();
+            Stats.flush();
+        }
+        return this;
+    }
+
+    public TableBuilder getBuilder()
+    {
+        return this.builder;
+    }
+
+    public JSONArray getRecords()
+    {
+        return this.records;
+    }
+
+    public Collection<String> getColumnsSeen()
+    {
+        return this.columnsSeen.getNames();
+    }
+
+    public long getRecordCount()
+    {
+        return this.recordCount;
+    }
+
+    // Reads [start, end) of a channel without touching its position, so every slice can share it
+    private static class SliceInputStream extends InputStream
+    {
+        private FileChannel channel;
+        private long position;
+        private long end;
+
+        public SliceInputStream(FileChannel channel, long start, long end)
+        {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            int read = read(one, 0, 1);
+            return (read == -1) ? -1 : (one[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+            if (this.position >= this.end)
+                return -1;
+            int wanted = (int) Math.min(len, this.end - this.position);
+            int read = this.channel.read(ByteBuffer.wrap(b, off, wanted), this.position);
+            if (read <= 0)
+                return -1;
+            this.position += read;
+            return read;
+        }
+    }
+}
@@ -2,15 +2,12 @@ package org.openstatic;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.io.StringWriter;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.apache.commons.text.StringEscapeUtils;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 public class OutputData 
 {
 
@@ -24,6 +21,9 @@ public class OutputData
             return Boolean.valueOf(true);
         if (!dataLC.contains("."))
         {
+            // most cells aren't numbers, don't pay for an exception to find that out
+            if (!mayBeLong(data))
+                return data;
             try
             {
                 Long longData = Long.valueOf(data);
@@ -39,24 +39,41 @@ public class OutputData
         return data;
     }
 
+    // False when Long.valueOf() would certainly fail, only signs and digits can parse
+    private static boolean mayBeLong(String data)
+    {
+        int length = data.length();
+        if (length == 0)
+            return false;
+        for (int i = 0; i < length; i++)
+        {
+            char c = data.charAt(i);
+            if (c != '-' && c != '+' && Character.digit(c, 10) < 0)
+                return false;
+        }
+        return true;
+    }
+
     public static void writeJSON(PrintWriter pw, List<String[]> dataLines) throws IOException 
     {
-        List<String[]> data = new ArrayList<String[]>(dataLines);
-        JSONArray outputArray = new JSONArray();
-        String[] columns = data.get(0);
-        data.remove(0);
-        data.forEach((row) -> {
-            JSONObject rowObject = new JSONObject();
-            for(int i = 0; i < row.length; i++)
-            {
-                rowObject.put(columns[i], guessType(row[i]));
-            }
-            outputArray.put(rowObject);
-        });
-        pw.print(outputArray.toString(2));
+        JSONTableWriter writer = new JSONTableWriter(pw);
+        writer.writeHeader(dataLines.get(0));
+        for (int i = 1; i < dataLines.size(); i++)
+            writer.writeRow(dataLines.get(i));
+        writer.finish();
     }
 
     public static void writeHTML(String tableName, PrintWriter pw, List<String[]> dataLines) throws IOException 
+    {
+        writeHTMLStart(tableName, pw, dataLines.get(0));
+        dataLines.stream().skip(1)
+            .map(OutputData::convertToHTML)
+            .forEach(pw::println);
+        writeHTMLEnd(pw);
+    }
+
+    // Everything up to and including the table header, rows can be written right after
+    public static void writeHTMLStart(String tableName, PrintWriter pw, String[] columnHeaders) throws IOException 
     {
         pw.println("<!-- Generated By JSON-Roller v" + JSONRoller.VERSION + " https://openstatic.org/projects/json-roller/ -->");
         pw.println("""
@@ -362,12 +379,12 @@ public class OutputData
         pw.println("<div class=\"headerDiv\"><span id=\"loadingMSG\">Loading... </span>" + tableName + " <span id=\"rowInfo\" style=\"font-size: 18px;\"></span> <button id=\"exportCsvButton\" style=\"display: none;\" onclick=\"exportCSV()\">Export (Filtered and Sorted) CSV</button><button style=\"display: none;\" id=\"showImageButton\" onclick=\"toggleImages()\">Show Images</button><a href=\"https://openstatic.org/projects/json-roller/\" target=\"_blank\" style=\"float: right; font-size: 18px; text-decoration: none;\">Generated by json-roller</a></div>");
         pw.println("<table id=\"data\" style=\"margin-top: 64px; display: none;\">");
         pw.println("<thead><tr>");
-        String[] columnHeaders = dataLines.get(0);
         pw.println(Stream.of(columnHeaders).map(OutputData::makeColumnHeader).collect(Collectors.joining()));
         pw.println("</tr></thead><tbody>");
-        dataLines.stream().skip(1)
-            .map(OutputData::convertToHTML)
-            .forEach(pw::println);
+    }
+
+    public static void writeHTMLEnd(PrintWriter pw) throws IOException 
+    {
         pw.println("</tbody></table></body></html>");
     }
     
@@ -402,120 +419,65 @@ public class OutputData
 
     public static void writeCSV(PrintWriter pw, List<String[]> dataLines) throws IOException 
     {
-        dataLines.stream()
-            .map(OutputData::convertToCSV)
-            .forEach(pw::println);
+        DelimitedWriter out = DelimitedWriter.csv(pw);
+        for (String[] line : dataLines)
+            out.writeLine(line);
+        out.flush();
     }
     
     public static String convertToCSV(String[] data)
     {
-        return Stream.of(data)
-                .map(OutputData::escapeSpecialCharacters)
-                .collect(Collectors.joining(","));
+        StringWriter sw = new StringWriter();
+        try
+        {
+            DelimitedWriter out = DelimitedWriter.csv(sw);
+            out.writeCells(data);
+            out.flush();
+        } catch (IOException e) {
+            // a StringWriter doesn't throw
+        }
+        return sw.toString();
     }
     
     public static String escapeSpecialCharacters(String data) 
     {
-        String escapedData = data.replaceAll("\\R", " ");
-        if (data.contains(",") || data.contains("\"") || data.contains("'") || data.contains(" ")) {
-            data = data.replace("\"", "\"\"");
-            escapedData = "\"" + data + "\"";
-        }
-        return escapedData;
+        return convertToCSV(new String[] { data });
     }
 
     public static void writeTSV(PrintWriter pw, List<String[]> dataLines) throws IOException 
     {
-        dataLines.stream()
-            .map(OutputData::convertToTSV)
-            .forEach(pw::println);
+        DelimitedWriter out = DelimitedWriter.tsv(pw);
+        for (String[] line : dataLines)
+            out.writeLine(line);
+        out.flush();
     }
     
     public static String convertToTSV(String[] data)
     {
-        return Stream.of(data)
-                .map(OutputData::escapeSpecialTabCharacters)
-                .collect(Collectors.joining("\t"));
+        StringWriter sw = new StringWriter();
+        try
+        {
+            DelimitedWriter out = DelimitedWriter.tsv(sw);
+            out.writeCells(data);
+            out.flush();
+        } catch (IOException e) {
+            // a StringWriter doesn't throw
+        }
+        return sw.toString();
     }
     
     public static String escapeSpecialTabCharacters(String data) 
     {
-        String escapedData = data.replaceAll("\\t", " ").replaceAll("\\r", " ");
-        return escapedData;
+        return convertToTSV(new String[] { data });
     }
 
     public static void writeMarkdown(PrintWriter pw, List<String[]> dataLines) throws IOException 
     {
-        boolean firstLine = true;
-        int[] columnSizes = new int[dataLines.get(0).length];
-        for(String[] row : dataLines)
-        {
-            for(int i = 0; i < row.length; i++)
-            {
-                if (row[i].length() > columnSizes[i])
-                    columnSizes[i] = row[i].length();
-            }
-        }
-        for(int i = 0; i < columnSizes.length; i++)
-        {
-            columnSizes[i]++;
-        }
-        for(String[] row : dataLines)
-        {
-            for(int i = 0; i < row.length; i++)
-            {
-                pw.append("| ");
-                pw.append(createSizedString(row[i], columnSizes[i]));
-            }
-            pw.println("|");
-            if (firstLine)
-            {
-                firstLine = false;
-                for(int i = 0; i < columnSizes.length; i++)
-                {
-                    pw.append("|-");
-                    pw.append(getDashed(columnSizes[i]));
-                }
-                pw.println("|");
-            }
-        }
-        pw.flush();
+        MarkdownTableWriter writer = new MarkdownTableWriter(pw);
+        writer.writeHeader(dataLines.get(0));
+        for (int i = 1; i < dataLines.size(); i++)
+            writer.writeRow(dataLines.get(i));
+        writer.finish();
         pw.close();
     }
-
-    public static String getPaddingSpace(int value)
-    {
-        StringBuffer x = new StringBuffer("");
-        for (int n = 0; n < value; n++)
-        {
-            x.append(" ");
-        }
-        return x.toString();
-    }
-
-    public static String getDashed(int value)
-    {
-        StringBuffer x = new StringBuffer("");
-        for (int n = 0; n < value; n++)
-        {
-            x.append("-");
-        }
-        return x.toString();
-    }
-
-    public static String createSizedString(String value, int size)
-    {
-        if (value == null)
-        {
-            return getPaddingSpace(size);
-        } else if (value.length() == size) {
-            return value;
-        } else if (value.length() > size) {
-            return value.substring(0, size);
-        } else if (value.length() < size) {
-            return value + getPaddingSpace(size - value.length());
-        } else {
-            return null;
-        }
-    }
 }
\ No newline at end of file
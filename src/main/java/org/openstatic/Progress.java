@@ -0,0 +1,229 @@
+package org.openstatic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import org.json.*;
+
+/*
+    Live progress for long runs (--progress / --progress-file).
+
+    A daemon thread wakes up every few seconds and reports the bytes read out
+    of the total size of the inputs, the records parsed, kept by the filters
+    and written, the current rate, an ETA and the heap in use. It reads the
+    same counters --stats uses (see Stats), only the counting is switched on,
+    not the timing, so the readers and writers do no extra work beyond adding
+    to a LongAdder.
+
+    The status file is replaced on every update, so another process can poll
+    it without ever seeing half a report.
+*/
+public class Progress implements Runnable
+{
+    public static final long INTERVAL_MILLIS = 2000;
+
+    private static Progress progress;
+
+    private boolean console;
+    private File statusFile;
+    private Thread thread;
+    private long startedAt;
+    private long totalBytes;
+    private long lastAt;
+    private long lastBytes;
+    private long lastRecords;
+    private long lastWritten;
+
+    private Progress(boolean console, File statusFile)
+    {
+        this.console = console;
+        this.statusFile = statusFile;
+        this.startedAt = System.currentTimeMillis();
+        this.lastAt = this.startedAt;
+    }
+
+    // Start reporting to STDERR (console) and/or a status file (may be null)
+    public static synchronized void start(boolean console, File statusFile)
+    {
+        if (Progress.progress != null)
+            return;
+        Stats.enableCounters();
+        Progress.progress = new Progress(console, statusFile);
+        Progress.progress.thread = new Thread(Progress.progress, "progress");
+        Progress.progress.thread.setDaemon(true);
+        Progress.progress.thread.start();
+    }
+
+    public static boolean isEnabled()
+    {
+        return Progress.progress != null;
+    }
+
+    // The inputs about to be read, their sizes add to the total (a --stream run reads everything twice)
+    public static void expect(List<InputSource> sources)
+    {
+        Progress current = Progress.progress;
+        if (current == null)
+            return;
+        for (InputSource source : sources)
+        {
+            Path path = source.getPath();
+            try
+            {
+                if (path != null)
+                    current.addTotal(Files.size(path));
+            } catch (IOException e) {
+                JSONRoller.logIt("Unable to size " + source.getName() + " for progress");
+            }
+        }
+    }
+
+    // Stop the reporting thread and write the final report
+    public static synchronized void finish()
+    {
+        Progress current = Progress.progress;
+        if (current == null)
+            return;
+        current.thread.interrupt();
+        try
+        {
+            current.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        current.report(true);
+        Progress.progress = null;
+    }
+
+    private synchronized void addTotal(long bytes)
+    {
+        this.totalBytes += bytes;
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                Thread.sleep(INTERVAL_MILLIS);
+                report(false);
+            }
+        } catch (InterruptedException e) {
+            // finished
+        }
+    }
+
+    private synchronized void report(boolean done)
+    {
+        long now = System.currentTimeMillis();
+        long bytes = Stats.READ.getBytes();
+        long parsed = Stats.PARSE.getRecords() + Stats.PIVOT.getRecords();
+        long kept = Stats.FLATTEN.getRecords();
+        // the slowest output, they all get every row
+        long written = -1;
+        for (Stats.Stage stage : Stats.getStages())
+        {
+            if (stage.getName().startsWith("write "))
+                written = (written < 0) ? stage.getRecords() : Math.min(written, stage.getRecords());
+        }
+        written = Math.max(written, 0);
+        double seconds = Math.max(now - this.lastAt, 1) / 1000.0;
+        // once the inputs are read (buffered tables) the writers are what is moving
+        double recordRate = Math.max(parsed - this.lastRecords, written - this.lastWritten) / seconds;
+        double byteRate = (bytes - this.lastBytes) / seconds;
+        if (done)
+        {
+            // the rate over the whole run is more use than the last few seconds
+            seconds = Math.max(now - this.startedAt, 1) / 1000.0;
+            recordRate = parsed / seconds;
+            byteRate = bytes / seconds;
+        }
+        this.lastAt = now;
+        this.lastBytes = bytes;
+        this.lastRecords = parsed;
+        this.lastWritten = written;
+        long total = this.totalBytes;
+        long eta = -1;
+        if (!done && total > 0 && byteRate > 0 && bytes < total)
+            eta = Math.round((total - bytes) / byteRate);
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        long heapMax = runtime.maxMemory();
+
+        if (this.console)
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append(done ? "Done: " : "Progress: ");
+            sb.append(formatBytes(bytes));
+            if (total > 0)
+            {
+                sb.append(" / ").append(formatBytes(total));
+                sb.append(String.format(" (%.1f%%)", Math.min(100.0, bytes * 100.0 / total)));
+            }
+            sb.append(", parsed ").append(parsed);
+            sb.append(", kept ").append(kept);
+            sb.append(", written ").append(written);
+            sb.append(String.format(", %.0f rec/s, %s/s", recordRate, formatBytes(Math.round(byteRate))));
+            if (eta >= 0)
+                sb.append(", ETA ").append(formatSeconds(eta));
+            sb.append(", heap ").append(formatBytes(heapUsed)).append(" / ").append(formatBytes(heapMax));
+            PrintStream err = System.err;
+            err.println(sb.toString());
+            err.flush();
+        }
+        if (this.statusFile != null)
+        {
+            JSONObject status = new JSONObject();
+            status.put("done", done);
+            status.put("elapsedMillis", now - this.startedAt);
+            status.put("bytesRead", bytes);
+            status.put("bytesTotal", total);
+            status.put("recordsParsed", parsed);
+            status.put("recordsKept", kept);
+            status.put("recordsWritten", written);
+            status.put("recordsPerSecond", Math.round(recordRate));
+            status.put("bytesPerSecond", Math.round(byteRate));
+            status.put("etaSeconds", eta);
+            status.put("heapUsed", heapUsed);
+            status.put("heapMax", heapMax);
+            writeStatus(status);
+        }
+    }
+
+    private void writeStatus(JSONObject status)
+    {
+        try
+        {
+            File parent = this.statusFile.getAbsoluteFile().getParentFile();
+            Path temp = Files.createTempFile(parent.toPath(), ".progress-", ".tmp");
+            Files.write(temp, status.toString(2).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, this.statusFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            JSONRoller.logIt("Unable to write progress file " + this.statusFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    private static String formatBytes(long bytes)
+    {
+        if (bytes < 1024)
+            return String.valueOf(bytes) + "B";
+        if (bytes < 1024L * 1024L)
+            return String.format("%.1fK", bytes / 1024.0);
+        if (bytes < 1024L * 1024L * 1024L)
+            return String.format("%.1fM", bytes / (1024.0 * 1024.0));
+        return String.format("%.2fG", bytes / (1024.0 * 1024.0 * 1024.0));
+    }
+
+    private static String formatSeconds(long seconds)
+    {
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+}
@@ -0,0 +1,188 @@
+package org.openstatic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    Writes a table as numbered files, 01_export.csv, 02_export.csv ... next
+    to the filename given. A new file is started once the current one holds
+    maxRows rows or has reached maxBytes (0 for no limit on either), every
+    file gets the header (and the byte order mark, if asked for) of its own
+    and rows go straight into whichever file is open.
+
+    The first file is opened with the header, so an empty table still gives
+    one file, the next one only when a row needs it, so an exact multiple of
+    maxRows doesn't leave a file with nothing but the header. A file always
+    gets at least one row. maxBytes is checked against what has reached the
+    file's output buffer plus what the table writer is still holding (counted
+    in chars, so text outside ASCII counts a little short), so with a byte
+    limit a file runs over by no more than a row.
+
+    With gzip every finished file is compressed to .gz on a background
+    thread while the next one is written, finish() waits for the last one.
+*/
+public class RollingTableWriter implements TableWriter
+{
+    private File file;
+    private long maxRows;
+    private long maxBytes;
+    private boolean byteOrderMark;
+    private Function<PrintWriter, TableWriter> format;
+    private Stats.Stage stage;
+    private String[] header;
+    private int piece;
+    private File pieceFile;
+    private UTF8ChannelWriter pieceOut;
+    private TableWriter pieceWriter;
+    private long rowsInPiece;
+    private ExecutorService compressor;
+    private List<Future<?>> compressed;
+
+    // format makes the writer for each file, stage counts the bytes written for --stats (may be null)
+    public RollingTableWriter(String filename, long maxRows, long maxBytes, boolean byteOrderMark, boolean gzip, Function<PrintWriter, TableWriter> format, Stats.Stage stage)
+    {
+        this.file = new File(filename);
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+        this.byteOrderMark = byteOrderMark;
+        this.format = format;
+        this.stage = stage;
+        this.compressed = new ArrayList<Future<?>>();
+        if (gzip)
+        {
+            this.compressor = Executors.newSingleThreadExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "gzip-" + this.file.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Override
+    public void writeHeader(String[] columns) throws IOException
+    {
+        this.header = columns;
+        nextPiece();
+    }
+
+    @Override
+    public void writeRow(String[] row) throws IOException
+    {
+        if (this.rowsInPiece > 0 && isFull())
+            nextPiece();
+        this.pieceWriter.writeRow(row);
+        this.rowsInPiece++;
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        closePiece();
+        awaitCompression();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            closePiece();
+        } finally {
+            try
+            {
+                awaitCompression();
+            } finally {
+                if (this.compressor != null)
+                    this.compressor.shutdown();
+            }
+        }
+    }
+
+    private boolean isFull()
+    {
+        if (this.maxRows > 0 && this.rowsInPiece >= this.maxRows)
+            return true;
+        return this.maxBytes > 0 && this.pieceOut.getBytesWritten() + this.pieceWriter.getPendingChars() >= this.maxBytes;
+    }
+
+    private void nextPiece() throws IOException
+    {
+        closePiece();
+        this.piece++;
+        this.rowsInPiece = 0;
+        this.pieceFile = new File(this.file.getAbsoluteFile().getParentFile(), String.format("%02d", this.piece) + "_" + this.file.getName());
+        JSONRoller.logIt("Writing: " + this.pieceFile.getPath());
+        this.pieceOut = UTF8ChannelWriter.file(this.pieceFile.toPath(), JSONRoller.getBufferSize(), this.stage);
+        PrintWriter pw = new PrintWriter(this.pieceOut);
+        if (this.byteOrderMark)
+            pw.write('\uFEFF');
+        this.pieceWriter = this.format.apply(pw);
+        this.pieceWriter.writeHeader(this.header);
+    }
+
+    private void closePiece() throws IOException
+    {
+        if (this.pieceWriter == null)
+            return;
+        TableWriter writer = this.pieceWriter;
+        this.pieceWriter = null;
+        try
+        {
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        if (this.compressor != null)
+        {
+            Path path = this.pieceFile.toPath();
+            this.compressed.add(this.compressor.submit(() -> {
+                compress(path);
+                return null;
+            }));
+        }
+    }
+
+    // Replaces the file with a .gz of it
+    private static void compress(Path path) throws IOException
+    {
+        Path gzPath = path.resolveSibling(path.getFileName().toString() + ".gz");
+        try (InputStream in = Files.newInputStream(path); OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzPath), 1 << 16))
+        {
+            in.transferTo(out);
+        }
+        Files.delete(path);
+    }
+
+    private void awaitCompression() throws IOException
+    {
+        if (this.compressor == null)
+            return;
+        try
+        {
+            for (Future<?> future : this.compressed)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted compressing " + this.file.getName(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            this.compressed.clear();
+        }
+    }
+}
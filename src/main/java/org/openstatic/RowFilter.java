@@ -0,0 +1,482 @@
+package org.openstatic;
+
+import java.util.ArrayList;
+
+import org.json.*;
+
+/*
+    The -f filter expression, compiled once up front into a tree of conditions
+    instead of picking the filter text apart again for every row.
+
+    A condition is column=value, column!=value or a numeric test (>= <= > <).
+    The column can be a nested one, named the way it shows up in the table
+    (user.address.country, items[0].sku). Conditions are combined with
+
+     * "," or " AND "        all must match
+     * "|" or " OR "         any may match (binds looser than AND)
+     * "!" or "NOT "         negates the condition or group that follows
+     * ( ... )               grouping
+
+    example: -f "country=US,(age>=21|vip=true),!status=closed"
+
+    Values (or columns) holding any of , | ( ) ! = < > go in double quotes,
+    name="Smith, J", or have those characters escaped with a backslash.
+    A condition with nothing after the operator, name=, compares to blank.
+
+    = and != compare text, a missing column counts as blank. Numeric tests
+    treat a missing column as 0 and never match a value that isn't a number.
+*/
+public class RowFilter
+{
+    private Node root;
+    private String[] keys;
+
+    private RowFilter(Node root, ArrayList<String> keys)
+    {
+        this.root = root;
+        this.keys = keys.toArray(new String[keys.size()]);
+    }
+
+    // Throws IllegalArgumentException when the expression can't be understood
+    public static RowFilter compile(String filtersString)
+    {
+        Parser parser = new Parser(filtersString);
+        Node root = parser.parseOr(0);
+        if (parser.pos < filtersString.length())
+            throw parser.error("Unexpected text");
+        return new RowFilter(root, parser.keys);
+    }
+
+    public boolean matches(JSONObject row)
+    {
+        return this.root.test(row, null, null);
+    }
+
+    // For flat rows, columns comes from indexColumns() for the row's header
+    public boolean matches(String[] row, int[] columns)
+    {
+        return this.root.test(null, row, columns);
+    }
+
+    // Position in the header of every column the filter looks at, -1 when it isn't there
+    public int[] indexColumns(String[] header)
+    {
+        int[] columns = new int[this.keys.length];
+        for (int i = 0; i < columns.length; i++)
+        {
+            columns[i] = -1;
+            for (int c = 0; c < header.length; c++)
+            {
+                if (this.keys[i].equals(header[c]))
+                    columns[i] = c;
+            }
+        }
+        return columns;
+    }
+
+    // Parses a number the way Double.valueOf does, NaN when it isn't one
+    public static double parseNumber(String value)
+    {
+        String trimmed = value.trim();
+        if (trimmed.length() == 0)
+            return Double.NaN;
+        char c = trimmed.charAt(0);
+        if (!(Character.isDigit(c) || c == '-' || c == '+' || c == '.' || c == 'N' || c == 'I'))
+            return Double.NaN;
+        try
+        {
+            return Double.parseDouble(trimmed);
+        } catch (NumberFormatException nfe) {
+            return Double.NaN;
+        }
+    }
+
+    private static abstract class Node
+    {
+        // row is set for JSON records, flat and columns for flat rows
+        public abstract boolean test(JSONObject row, String[] flat, int[] columns);
+    }
+
+    private static class And extends Node
+    {
+        private Node[] nodes;
+
+        public And(ArrayList<Node> nodes)
+        {
+            this.nodes = nodes.toArray(new Node[nodes.size()]);
+        }
+
+        @Override
+        public boolean test(JSONObject row, String[] flat, int[] columns)
+        {
+            for (int i = 0; i < this.nodes.length; i++)
+            {
+                if (!this.nodes[i].test(row, flat, columns))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Or extends Node
+    {
+        private Node[] nodes;
+
+        public Or(ArrayList<Node> nodes)
+        {
+            this.nodes = nodes.toArray(new Node[nodes.size()]);
+        }
+
+        @Override
+        public boolean test(JSONObject row, String[] flat, int[] columns)
+        {
+            for (int i = 0; i < this.nodes.length; i++)
+            {
+                if (this.nodes[i].test(row, flat, columns))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private static class Not extends Node
+    {
+        private Node node;
+
+        public Not(Node node)
+        {
+            this.node = node;
+        }
+
+        @Override
+        public boolean test(JSONObject row, String[] flat, int[] columns)
+        {
+            return !this.node.test(row, flat, columns);
+        }
+    }
+
+    // An empty filter, matches everything
+    private static class Always extends Node
+    {
+        @Override
+        public boolean test(JSONObject row, String[] flat, int[] columns)
+        {
+            return true;
+        }
+    }
+
+    private static abstract class Condition extends Node
+    {
+        protected FieldPath path;
+        protected int slot;
+
+        public Condition(String key, int slot)
+        {
+            this.path = FieldPath.compile(key);
+            this.slot = slot;
+        }
+
+        // The row's value for this condition's column, null when it doesn't have one.
+        // Records are checked before they are flattened, so nested columns are found by path.
+        protected String value(JSONObject row, String[] flat, int[] columns)
+        {
+            if (row != null)
+            {
+                Object value = this.path.lookup(row);
+                return (value == null || JSONObject.NULL.equals(value)) ? null : value.toString();
+            }
+            int column = columns[this.slot];
+            return (column >= 0 && column < flat.length) ? flat[column] : null;
+        }
+    }
+
+    private static class TextCondition extends Condition
+    {
+        private String expected;
+        private boolean negate;
+
+        public TextCondition(String key, int slot, String expected, boolean negate)
+        {
+            super(key, slot);
+            this.expected = expected;
+            this.negate = negate;
+        }
+
+        @Override
+        public boolean test(JSONObject row, String[] flat, int[] columns)
+        {
+            String value = value(row, flat, columns);
+            return this.expected.equals(value == null ? "" : value) != this.negate;
+        }
+    }
+
+    private static class NumberCondition extends Condition
+    {
+        private static final int GREATER = 0;
+        private static final int GREATER_OR_EQUAL = 1;
+        private static final int LESS = 2;
+        private static final int LESS_OR_EQUAL = 3;
+
+        private int operator;
+        private double expected;
+
+        public NumberCondition(String key, int slot, int operator, double expected)
+        {
+            super(key, slot);
+            this.operator = operator;
+            this.expected = expected;
+        }
+
+        @Override
+        public boolean test(JSONObject row, String[] flat, int[] columns)
+        {
+            String value = value(row, flat, columns);
+            double number = (value == null) ? 0 : parseNumber(value);
+            switch (this.operator)
+            {
+                case GREATER:
+                    return number > this.expected;
+                case GREATER_OR_EQUAL:
+                    return number >= this.expected;
+                case LESS:
+                    return number < this.expected;
+                default:
+                    return number <= this.expected;
+            }
+        }
+    }
+
+    private static class Parser
+    {
+        private String text;
+        private int pos;
+        private ArrayList<String> keys;
+
+        public Parser(String text)
+        {
+            this.text = text;
+            this.keys = new ArrayList<String>();
+        }
+
+        public Node parseOr(int depth)
+        {
+            ArrayList<Node> nodes = new ArrayList<Node>();
+            nodes.add(parseAnd(depth));
+            while (true)
+            {
+                skipSpaces();
+                if (consume("|") || consumeWord("OR"))
+                    nodes.add(parseAnd(depth));
+                else
+                    break;
+            }
+            return (nodes.size() == 1) ? nodes.get(0) : new Or(nodes);
+        }
+
+        private Node parseAnd(int depth)
+        {
+            ArrayList<Node> nodes = new ArrayList<Node>();
+            nodes.add(parseUnary(depth));
+            while (true)
+            {
+                skipSpaces();
+                if (consume(",") || consumeWord("AND"))
+                    nodes.add(parseUnary(depth));
+                else
+                    break;
+            }
+            return (nodes.size() == 1) ? nodes.get(0) : new And(nodes);
+        }
+
+        private Node parseUnary(int depth)
+        {
+            skipSpaces();
+            if (this.text.startsWith("!", this.pos) && !this.text.startsWith("!=", this.pos))
+            {
+                this.pos++;
+                return new Not(parseUnary(depth));
+            }
+            if (consumeWord("NOT"))
+                return new Not(parseUnary(depth));
+            if (consume("("))
+            {
+                Node group = parseOr(depth + 1);
+                skipSpaces();
+                if (!consume(")"))
+                    throw error("Missing ')'");
+                return group;
+            }
+            return parseCondition(depth);
+        }
+
+        // A condition runs up to the next , | (or ")" inside a group) or a spaced AND / OR,
+        // text in double quotes or after a backslash never ends it
+        private Node parseCondition(int depth)
+        {
+            int start = this.pos;
+            int end = this.pos;
+            boolean quoted = false;
+            while (this.pos < this.text.length())
+            {
+                char c = this.text.charAt(this.pos);
+                if (c == '\\')
+                {
+                    if (this.pos + 1 >= this.text.length())
+                        throw error("Nothing to escape after '\\'");
+                    this.pos += 2;
+                    end = this.pos;
+                    continue;
+                }
+                if (c == '"')
+                {
+                    quoted = !quoted;
+                } else if (!quoted) {
+                    if (c == ',' || c == '|' || (c == ')' && depth > 0))
+                        break;
+                    if (Character.isWhitespace(c) && (wordAt(this.pos + 1, "AND") || wordAt(this.pos + 1, "OR")))
+                        break;
+                }
+                this.pos++;
+                if (quoted || c == '"' || !Character.isWhitespace(c))
+                    end = this.pos;
+            }
+            if (quoted)
+                throw error("Missing closing quote");
+            String condition = this.text.substring(start, end);
+            if (condition.length() == 0)
+                return new Always();
+            try
+            {
+                return compileCondition(condition);
+            } catch (IllegalArgumentException iae) {
+                throw iae;
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Bad filter condition \"" + condition + "\"");
+            }
+        }
+
+        // Same operator precedence as the original comma separated filters, the condition is
+        // split at the first operator outside quotes, so the value may hold = < > as well
+        private Node compileCondition(String filter)
+        {
+            String[] operators = {"!=", ">=", "<=", "=", ">", "<"};
+            for (int o = 0; o < operators.length; o++)
+            {
+                int at = indexOfOperator(filter, operators[o]);
+                if (at == -1)
+                    continue;
+                String key = literal(filter.substring(0, at));
+                String value = literal(filter.substring(at + operators[o].length()));
+                if (key.length() == 0)
+                    throw new IllegalArgumentException("No column in filter condition \"" + filter + "\"");
+                switch (operators[o])
+                {
+                    case "!=":
+                        return new TextCondition(key, slot(key), value, true);
+                    case "=":
+                        return new TextCondition(key, slot(key), value, false);
+                    case ">=":
+                        return numberCondition(key, NumberCondition.GREATER_OR_EQUAL, value);
+                    case "<=":
+                        return numberCondition(key, NumberCondition.LESS_OR_EQUAL, value);
+                    case ">":
+                        return numberCondition(key, NumberCondition.GREATER, value);
+                    default:
+                        return numberCondition(key, NumberCondition.LESS, value);
+                }
+            }
+            throw new IllegalArgumentException("No operator (= != >= <= < >) in filter condition \"" + filter + "\"");
+        }
+
+        // First place operator appears outside double quotes and not escaped, -1 if it doesn't
+        private static int indexOfOperator(String filter, String operator)
+        {
+            boolean quoted = false;
+            for (int i = 0; i < filter.length(); i++)
+            {
+                char c = filter.charAt(i);
+                if (c == '\\')
+                    i++;
+                else if (c == '"')
+                    quoted = !quoted;
+                else if (!quoted && filter.startsWith(operator, i))
+                    return i;
+            }
+            return -1;
+        }
+
+        // Drops the double quotes and backslashes, keeping what they protect
+        private static String literal(String part)
+        {
+            StringBuilder sb = new StringBuilder(part.length());
+            for (int i = 0; i < part.length(); i++)
+            {
+                char c = part.charAt(i);
+                if (c == '\\' && i + 1 < part.length())
+                    sb.append(part.charAt(++i));
+                else if (c != '"')
+                    sb.append(c);
+            }
+            return sb.toString();
+        }
+
+        private Node numberCondition(String key, int operator, String value)
+        {
+            double expected = parseNumber(value);
+            if (Double.isNaN(expected))
+                throw new IllegalArgumentException("Not a number in filter condition: " + value);
+            return new NumberCondition(key, slot(key), operator, expected);
+        }
+
+        private int slot(String key)
+        {
+            int slot = this.keys.indexOf(key);
+            if (slot == -1)
+            {
+                slot = this.keys.size();
+                this.keys.add(key);
+            }
+            return slot;
+        }
+
+        private void skipSpaces()
+        {
+            while (this.pos < this.text.length() && Character.isWhitespace(this.text.charAt(this.pos)))
+                this.pos++;
+        }
+
+        private boolean consume(String token)
+        {
+            if (this.text.startsWith(token, this.pos))
+            {
+                this.pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean consumeWord(String word)
+        {
+            if (wordAt(this.pos, word))
+            {
+                this.pos += word.length();
+                return true;
+            }
+            return false;
+        }
+
+        // An upper case keyword followed by a space or a bracket
+        private boolean wordAt(int at, String word)
+        {
+            if (!this.text.startsWith(word, at))
+                return false;
+            int after = at + word.length();
+            return after < this.text.length() && (Character.isWhitespace(this.text.charAt(after)) || this.text.charAt(after) == '(');
+        }
+
+        public IllegalArgumentException error(String message)
+        {
+            return new IllegalArgumentException(message + " at position " + String.valueOf(this.pos + 1) + " in filter: " + this.text);
+        }
+    }
+}
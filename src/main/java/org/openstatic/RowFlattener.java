@@ -0,0 +1,231 @@
+package org.openstatic;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.*;
+
+/*
+    Flattens records the same way JSONRoller.JSONObjectFlatten() does, but into
+    (column id, value) pairs from a ColumnDictionary instead of a fresh
+    HashMap of freshly built key strings for every row.
+
+    The pair arrays belong to the flattener and are overwritten by the next
+    row, copy them if they need to be kept.
+*/
+public class RowFlattener
+{
+    private ColumnDictionary dictionary;
+    private int[] ids;
+    private String[] values;
+    private int pairs;
+    // where each column's value went in the current row, when slotRow matches the row
+    private int[] slot;
+    private int[] slotRow;
+    private int row;
+    private boolean deferredColumns;
+
+    public RowFlattener(ColumnDictionary dictionary)
+    {
+        this.dictionary = dictionary;
+        this.ids = new int[32];
+        this.values = new String[32];
+        this.slot = new int[64];
+        this.slotRow = new int[64];
+    }
+
+    public ColumnDictionary getDictionary()
+    {
+        return this.dictionary;
+    }
+
+    public int[] getIds()
+    {
+        return this.ids;
+    }
+
+    public String[] getValues()
+    {
+        return this.values;
+    }
+
+    public int getPairs()
+    {
+        return this.pairs;
+    }
+
+    /*
+        Flatten one row. rowIndex names a value that isn't an object or array ("[rowIndex]"),
+        selection is the --columns trie or null to keep everything.
+    */
+    public void flatten(Object value, int rowIndex, ColumnSelection.Node selection) throws Exception
+    {
+        this.pairs = 0;
+        this.row++;
+        this.deferredColumns = false;
+        if (value instanceof JSONObject)
+        {
+            flattenObject(ColumnDictionary.ROOT, (JSONObject) value, selection);
+        } else if (value instanceof JSONArray) {
+            flattenArray(ColumnDictionary.ROOT, (JSONArray) value, selection);
+        } else if (selection == null || selection.index(rowIndex) != null) {
+            leaf(this.dictionary.value(rowIndex), value, (selection == null) ? null : selection.index(rowIndex));
+        }
+        if (this.deferredColumns)
+            registerDeferred(value, rowIndex);
+    }
+
+    private void flattenObject(int parent, JSONObject jo, ColumnSelection.Node selection) throws Exception
+    {
+        if (selection != null && selection.isAll())
+            selection = null;
+        if (parent != ColumnDictionary.ROOT)
+            this.dictionary.register(parent);
+        for (Iterator<String> fieldIterator = jo.keys(); fieldIterator.hasNext(); )
+        {
+            String field = fieldIterator.next();
+            ColumnSelection.Node valueSelection = null;
+            if (selection != null)
+            {
+                valueSelection = selection.child(field);
+                if (valueSelection == null)
+                    continue;
+            }
+            child(this.dictionary.key(parent, field), jo.get(field), valueSelection);
+        }
+    }
+
+    private void flattenArray(int parent, JSONArray jarray, ColumnSelection.Node selection) throws Exception
+    {
+        if (selection != null && selection.isAll())
+            selection = null;
+        if (parent != ColumnDictionary.ROOT)
+            this.dictionary.register(parent);
+        for (int m = 0; m < jarray.length(); m++)
+        {
+            ColumnSelection.Node valueSelection = null;
+            if (selection != null)
+            {
+                valueSelection = selection.index(m);
+                if (valueSelection == null)
+                    continue;
+            }
+            child(this.dictionary.index(parent, m), jarray.get(m), valueSelection);
+        }
+    }
+
+    private void child(int id, Object value, ColumnSelection.Node selection) throws Exception
+    {
+        if (value instanceof JSONObject)
+            flattenObject(id, (JSONObject) value, selection);
+        else if (value instanceof JSONArray)
+            flattenArray(id, (JSONArray) value, selection);
+        else if (value != null)
+            leaf(id, value, selection);
+    }
+
+    // Same rules as JSONRoller.objectToStringMap()
+    private void leaf(int id, Object value, ColumnSelection.Node selection)
+    {
+        if (selection != null && selection.isAll())
+            selection = null;
+        if (selection == null)
+            this.dictionary.register(id);
+        String valueString = value.toString();
+        if (valueString.startsWith("?") && valueString.contains("="))
+        {
+            String name = this.dictionary.name(id);
+            for (Map.Entry<String, String> param : JSONRoller.queryStringToStringMap(name, valueString).entrySet())
+            {
+                String key = param.getKey().substring(name.length() + 1);
+                if (selection != null)
+                {
+                    ColumnSelection.Node paramSelection = selection.child(key);
+                    if (paramSelection == null || !paramSelection.isAll())
+                        continue;
+                }
+                put(this.dictionary.key(id, key), param.getValue());
+                // the parameters only get registered once the whole row is done
+                this.deferredColumns = true;
+            }
+        } else if (selection == null) {
+            put(id, valueString);
+        }
+    }
+
+    // A later value for the same column replaces the earlier one
+    private void put(int id, String value)
+    {
+        if (id >= this.slot.length)
+        {
+            int size = Math.max(id + 1, this.slot.length * 2);
+            this.slot = Arrays.copyOf(this.slot, size);
+            this.slotRow = Arrays.copyOf(this.slotRow, size);
+        }
+        if (this.slotRow[id] == this.row)
+        {
+            this.values[this.slot[id]] = value;
+            return;
+        }
+        if (this.pairs == this.ids.length)
+        {
+            this.ids = Arrays.copyOf(this.ids, this.pairs * 2);
+            this.values = Arrays.copyOf(this.values, this.pairs * 2);
+        }
+        this.slotRow[id] = this.row;
+        this.slot[id] = this.pairs;
+        this.ids[this.pairs] = id;
+        this.values[this.pairs] = value;
+        this.pairs++;
+    }
+
+    // Query string parameters are registered in the order the old flatten code's HashMaps gave them
+    private void registerDeferred(Object value, int rowIndex)
+    {
+        HashSet<String> rowColumns = new HashSet<String>();
+        for (int p = 0; p < this.pairs; p++)
+            rowColumns.add(this.dictionary.name(this.ids[p]));
+        String name = null;
+        if (!(value instanceof JSONObject) && !(value instanceof JSONArray))
+            name = this.dictionary.name(this.dictionary.value(rowIndex));
+        for (String column : oldColumnOrder(name, value).keySet())
+        {
+            if (rowColumns.contains(column))
+                this.dictionary.register(this.dictionary.id(column));
+        }
+    }
+
+    /*
+        The map the old flatten code built for a value: a new HashMap for every object,
+        array and leaf, each one putAll() into the one above it. Its key order is where
+        the query string parameters of a row were first registered. Only rows holding a
+        query string get here, so the extra maps don't matter.
+    */
+    private static Map<String, String> oldColumnOrder(String name, Object value)
+    {
+        HashMap<String, String> map = new HashMap<String, String>();
+        if (value instanceof JSONObject)
+        {
+            JSONObject jo = (JSONObject) value;
+            for (Iterator<String> fieldIterator = jo.keys(); fieldIterator.hasNext(); )
+            {
+                String field = fieldIterator.next();
+                map.putAll(oldColumnOrder((name == null) ? field : name + "." + field, jo.get(field)));
+            }
+        } else if (value instanceof JSONArray) {
+            JSONArray jarray = (JSONArray) value;
+            for (int m = 0; m < jarray.length(); m++)
+                map.putAll(oldColumnOrder(((name == null) ? "" : name) + "[" + String.valueOf(m) + "]", jarray.get(m)));
+        } else if (value != null && name != null) {
+            String valueString = value.toString();
+            if (valueString.startsWith("?") && valueString.contains("="))
+                map.putAll(JSONRoller.queryStringParams(name, valueString));
+            else
+                map.put(name, valueString);
+        }
+        return map;
+    }
+}
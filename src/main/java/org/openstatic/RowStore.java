@@ -0,0 +1,277 @@
+package org.openstatic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+    Holds the flattened rows of a table until output time.
+
+    Rows are kept as parallel column-id / value arrays rather than one HashMap
+    each. Once the estimated size of the rows in memory goes over the memory
+    budget, everything is written to a temp file as (column-id, value) pairs
+    and any further rows go straight to that file. replay() hands the rows back
+    in the order they were added, ready to be written out.
+
+    Binary layout of a row: varint pair count, then for each pair a varint
+    column id, a varint byte length and the UTF-8 bytes of the value.
+*/
+public class RowStore
+{
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private long memoryBudget;
+    private long memoryUsed;
+    private long rowCount;
+    private ColumnDictionary dictionary;
+    private ArrayList<int[]> rowColumns;
+    private ArrayList<String[]> rowValues;
+    private Path spillFile;
+    private DataOutputStream spillOutput;
+
+    // Column ids come from the dictionary. A budget of zero or less keeps every row in memory
+    public RowStore(ColumnDictionary dictionary, long memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+        this.dictionary = dictionary;
+        this.rowColumns = new ArrayList<int[]>();
+        this.rowValues = new ArrayList<String[]>();
+    }
+
+    // A row as (column id, value) pairs, the arrays are copied so they can be reused
+    public void add(int[] columnIds, String[] values, int count) throws IOException
+    {
+        int[] ids = new int[count];
+        String[] kept = new String[count];
+        int pairs = 0;
+        for (int i = 0; i < count; i++)
+        {
+            String value = values[i];
+            // blank cells are written for missing columns anyway
+            if (value == null || value.length() == 0)
+                continue;
+            ids[pairs] = columnIds[i];
+            kept[pairs] = value;
+            pairs++;
+        }
+        addPairs(ids, kept, pairs);
+    }
+
+    // A row given as values by position, ids from the dictionary for each position (-1 to leave a value out)
+    public void addFlat(int[] columnIds, String[] row) throws IOException
+    {
+        int[] ids = new int[row.length];
+        String[] values = new String[row.length];
+        int pairs = 0;
+        for (int i = 0; i < row.length; i++)
+        {
+            String value = row[i];
+            if (columnIds[i] < 0 || value == null || value.length() == 0)
+                continue;
+            ids[pairs] = columnIds[i];
+            values[pairs] = value;
+            pairs++;
+        }
+        addPairs(ids, values, pairs);
+    }
+
+    // Append every row of another store (in order), its column ids are mapped onto ours
+    public void appendAll(RowStore other) throws IOException
+    {
+        int[] remap = new int[other.dictionary.size()];
+        for (int i = 1; i < remap.length; i++)
+            remap[i] = this.dictionary.id(other.dictionary.name(i));
+        other.readRows((ids, values, pairs) -> {
+            int[] mappedIds = new int[pairs];
+            for (int p = 0; p < pairs; p++)
+                mappedIds[p] = remap[ids[p]];
+            addPairs(mappedIds, Arrays.copyOf(values, pairs), pairs);
+        });
+    }
+
+    private void addPairs(int[] ids, String[] values, int pairs) throws IOException
+    {
+        this.rowCount++;
+        if (this.spillOutput != null)
+        {
+            writeRow(this.spillOutput, ids, values, pairs);
+            return;
+        }
+        if (pairs < ids.length)
+        {
+            ids = Arrays.copyOf(ids, pairs);
+            values = Arrays.copyOf(values, pairs);
+        }
+        this.rowColumns.add(ids);
+        this.rowValues.add(values);
+        this.memoryUsed += estimateSize(values);
+        if (this.memoryBudget > 0 && this.memoryUsed > this.memoryBudget)
+            spill();
+    }
+
+    public long getRowCount()
+    {
+        return this.rowCount;
+    }
+
+    public boolean isSpilled()
+    {
+        return this.spillFile != null;
+    }
+
+    // Send every row to the writer in insertion order, laid out to match the header
+    public void replay(List<String> header, TableWriter writer) throws IOException
+    {
+        int[] position = new int[this.dictionary.size()];
+        HashMap<String, Integer> headerIndex = new HashMap<String, Integer>();
+        for (int i = 0; i < header.size(); i++)
+            headerIndex.put(header.get(i), i);
+        for (int i = 0; i < position.length; i++)
+        {
+            Integer idx = headerIndex.get(this.dictionary.name(i));
+            position[i] = (idx == null) ? -1 : idx.intValue();
+        }
+        int width = header.size();
+        readRows((ids, values, pairs) -> {
+            String[] line = new String[width];
+            Arrays.fill(line, "");
+            for (int p = 0; p < pairs; p++)
+            {
+                if (position[ids[p]] >= 0)
+                    line[position[ids[p]]] = values[p];
+            }
+            writer.writeRow(line);
+        });
+    }
+
+    private interface RowVisitor
+    {
+        public void row(int[] ids, String[] values, int pairs) throws IOException;
+    }
+
+    // Visit every row in insertion order, from the spill file if there is one.
+    // The arrays handed to the visitor may be reused for the next row.
+    private void readRows(RowVisitor visitor) throws IOException
+    {
+        if (this.spillOutput != null)
+        {
+            this.spillOutput.flush();
+            int[] ids = new int[16];
+            String[] values = new String[16];
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.spillFile), OUTPUT_BUFFER_SIZE)))
+            {
+                for (long r = 0; r < this.rowCount; r++)
+                {
+                    int pairs = readVarInt(in);
+                    if (pairs > ids.length)
+                    {
+                        ids = new int[pairs];
+                        values = new String[pairs];
+                    }
+                    for (int p = 0; p < pairs; p++)
+                    {
+                        ids[p] = readVarInt(in);
+                        byte[] bytes = new byte[readVarInt(in)];
+                        in.readFully(bytes);
+                        values[p] = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                    visitor.row(ids, values, pairs);
+                }
+            }
+        } else {
+            for (int r = 0; r < this.rowColumns.size(); r++)
+            {
+                int[] ids = this.rowColumns.get(r);
+                visitor.row(ids, this.rowValues.get(r), ids.length);
+            }
+        }
+    }
+
+    // Remove the spill file, the store can't be replayed afterwards
+    public void cleanUp()
+    {
+        if (this.spillFile != null)
+        {
+            try
+            {
+                this.spillOutput.close();
+                Files.deleteIfExists(this.spillFile);
+            } catch (IOException e) {
+                JSONRoller.logIt("Unable to remove " + this.spillFile.toString());
+            }
+        }
+    }
+
+    private void spill() throws IOException
+    {
+        this.spillFile = Files.createTempFile("json-roller-rows-", ".bin");
+        this.spillFile.toFile().deleteOnExit();
+        JSONRoller.logIt("Memory budget exceeded after " + String.valueOf(this.rowCount) + " rows, spilling to " + this.spillFile.toString());
+        this.spillOutput = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.spillFile), OUTPUT_BUFFER_SIZE));
+        for (int r = 0; r < this.rowColumns.size(); r++)
+        {
+            int[] ids = this.rowColumns.get(r);
+            writeRow(this.spillOutput, ids, this.rowValues.get(r), ids.length);
+        }
+        this.rowColumns = new ArrayList<int[]>();
+        this.rowValues = new ArrayList<String[]>();
+        this.memoryUsed = 0;
+    }
+
+    // Rough heap footprint of a stored row: the two arrays plus each String
+    private static long estimateSize(String[] values)
+    {
+        long size = 48 + (8L * values.length);
+        for (int i = 0; i < values.length; i++)
+            size += 40 + values[i].length();
+        return size;
+    }
+
+    private static void writeRow(DataOutputStream out, int[] ids, String[] values, int pairs) throws IOException
+    {
+        writeVarInt(out, pairs);
+        for (int p = 0; p < pairs; p++)
+        {
+            byte[] bytes = values[p].getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, ids[p]);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException
+    {
+        int value = 0;
+        int shift = 0;
+        while (true)
+        {
+            int b = in.read();
+            if (b == -1)
+                throw new EOFException("Spill file ended early");
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+            shift += 7;
+        }
+    }
+}
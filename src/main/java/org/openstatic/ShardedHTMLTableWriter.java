@@ -0,0 +1,256 @@
+package org.openstatic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.text.StringEscapeUtils;
+
+/*
+    Writes the HTML report as pages of at most "limit" rows, 01_report.html,
+    02_report.html ... next to report.html, which becomes an index linking to
+    every page with the rows it holds and a summary of each column.
+
+    Each page is an ordinary -h report (in the --html-style asked for) and is
+    written as the rows go by, a page is only started once a row needs it so
+    an exact multiple of the limit doesn't leave an empty page at the end.
+    The index is written by finish(), from the running column summaries.
+*/
+public class ShardedHTMLTableWriter implements TableWriter
+{
+    // distinct values are only counted up to here per column
+    public static final int DISTINCT_LIMIT = 1000;
+    private static final int SUMMARY_WIDTH = 64;
+
+    private File indexFile;
+    private int limit;
+    private String style;
+    private Stats.Stage stage;
+    private String[] header;
+    private TableWriter shard;
+    private int rowsInShard;
+    private long rowCount;
+    private List<String> shardNames;
+    private List<long[]> shardRanges;
+    private ColumnSummary[] summaries;
+
+    // stage counts the bytes written for --stats, may be null
+    public ShardedHTMLTableWriter(String filename, int limit, String style, Stats.Stage stage)
+    {
+        this.indexFile = new File(filename);
+        this.limit = limit;
+        this.style = style;
+        this.stage = stage;
+        this.shardNames = new ArrayList<String>();
+        this.shardRanges = new ArrayList<long[]>();
+    }
+
+    @Override
+    public void writeHeader(String[] columns) throws IOException
+    {
+        this.header = columns;
+        this.summaries = new ColumnSummary[columns.length];
+        for (int i = 0; i < columns.length; i++)
+            this.summaries[i] = new ColumnSummary();
+    }
+
+    @Override
+    public void writeRow(String[] row) throws IOException
+    {
+        if (this.shard == null || this.rowsInShard >= this.limit)
+            nextShard();
+        this.shard.writeRow(row);
+        this.rowsInShard++;
+        this.rowCount++;
+        this.shardRanges.get(this.shardRanges.size() - 1)[1] = this.rowCount;
+        for (int i = 0; i < row.length; i++)
+            this.summaries[i].add(row[i]);
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        closeShard();
+        PrintWriter pw = new PrintWriter(UTF8ChannelWriter.file(this.indexFile.toPath(), JSONRoller.getBufferSize(), this.stage));
+        try
+        {
+            writeIndex(pw);
+        } finally {
+            pw.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closeShard();
+    }
+
+    private void nextShard() throws IOException
+    {
+        closeShard();
+        String name = String.format("%02d", this.shardNames.size() + 1) + "_" + this.indexFile.getName();
+        File shardFile = new File(this.indexFile.getAbsoluteFile().getParentFile(), name);
+        JSONRoller.logIt("Writing HTML page: " + shardFile.getPath());
+        PrintWriter pw = new PrintWriter(UTF8ChannelWriter.file(shardFile.toPath(), JSONRoller.getBufferSize(), this.stage));
+        this.shard = JSONRoller.openHTMLWriter(this.style, JSONRoller.filenameWithoutExtension(name), pw);
+        this.shard.writeHeader(this.header);
+        this.rowsInShard = 0;
+        this.shardNames.add(name);
+        this.shardRanges.add(new long[] {this.rowCount + 1, this.rowCount});
+    }
+
+    private void closeShard() throws IOException
+    {
+        if (this.shard == null)
+            return;
+        TableWriter shard = this.shard;
+        this.shard = null;
+        try
+        {
+            shard.finish();
+        } finally {
+            shard.close();
+        }
+    }
+
+    private void writeIndex(PrintWriter pw)
+    {
+        String title = StringEscapeUtils.escapeHtml4(JSONRoller.filenameWithoutExtension(this.indexFile.getName()));
+        pw.println("<!-- Generated By JSON-Roller v" + JSONRoller.VERSION + " https://openstatic.org/projects/json-roller/ -->");
+        pw.println("""
+            <html>
+            <head>
+            <meta charset="utf-8">
+            <style>
+                body
+                {
+                    font-family: Arial, Helvetica, sans-serif;
+                }
+
+                table
+                {
+                    border-collapse: collapse;
+                    margin-bottom: 24px;
+                }
+
+                td, th
+                {
+                    border: 1px solid #ddd;
+                    padding: 8px;
+                    text-align: left;
+                }
+
+                tr:nth-child(even){background-color: #f2f2f2;}
+
+                th {
+                    background-color: #808080;
+                    color: white;
+                }
+            </style>
+            </head>
+            <body>""");
+        pw.println("<h1>" + title + " <span style=\"font-size: 18px;\">(" + plural(this.rowCount, "row") + " in " + plural(this.shardNames.size(), "page") + ")</span></h1>");
+        pw.println("<table><thead><tr><th>Page</th><th>First Row</th><th>Last Row</th><th>Rows</th></tr></thead><tbody>");
+        for (int i = 0; i < this.shardNames.size(); i++)
+        {
+            String name = StringEscapeUtils.escapeHtml4(this.shardNames.get(i));
+            long[] range = this.shardRanges.get(i);
+            pw.println("<tr><td><a href=\"" + name + "\">" + name + "</a></td><td>" + String.format("%,d", range[0]) + "</td><td>" + String.format("%,d", range[1]) + "</td><td>" + String.format("%,d", range[1] - range[0] + 1) + "</td></tr>");
+        }
+        pw.println("</tbody></table>");
+        pw.println("<table><thead><tr><th>Column</th><th>Filled</th><th>Empty</th><th>Distinct</th><th>Min</th><th>Max</th></tr></thead><tbody>");
+        for (int i = 0; i < this.header.length; i++)
+        {
+            ColumnSummary summary = this.summaries[i];
+            pw.println("<tr><td>" + StringEscapeUtils.escapeHtml4(this.header[i]) + "</td><td>" + String.format("%,d", summary.filled) + "</td><td>" + String.format("%,d", this.rowCount - summary.filled) + "</td><td>" + summary.getDistinct() + "</td><td>" + summary.getMin() + "</td><td>" + summary.getMax() + "</td></tr>");
+        }
+        pw.println("</tbody></table>");
+        pw.println("<a href=\"https://openstatic.org/projects/json-roller/\" target=\"_blank\" style=\"font-size: 14px; text-decoration: none;\">Generated by json-roller</a>");
+        pw.println("</body></html>");
+    }
+
+    // "1 page", "2 pages"
+    private static String plural(long count, String noun)
+    {
+        return String.format("%,d", count) + " " + noun + ((count == 1) ? "" : "s");
+    }
+
+    // Running figures for one column, min and max are numeric while every filled cell is a number
+    private static class ColumnSummary
+    {
+        private long filled;
+        private long numbers;
+        private double minNumber = Double.POSITIVE_INFINITY;
+        private double maxNumber = Double.NEGATIVE_INFINITY;
+        private String minText;
+        private String maxText;
+        private HashSet<String> distinct = new HashSet<String>();
+        private boolean distinctOverflow;
+
+        public void add(String value)
+        {
+            if (value.isEmpty())
+                return;
+            this.filled++;
+            if (!this.distinctOverflow && this.distinct.add(value) && this.distinct.size() > DISTINCT_LIMIT)
+            {
+                this.distinctOverflow = true;
+                this.distinct = null;
+            }
+            if (this.minText == null || value.compareTo(this.minText) < 0)
+                this.minText = value;
+            if (this.maxText == null || value.compareTo(this.maxText) > 0)
+                this.maxText = value;
+            if (this.numbers == this.filled - 1)
+            {
+                Object typed = OutputData.guessType(value);
+                double number = (typed instanceof Number) ? ((Number) typed).doubleValue() : Double.NaN;
+                if (Double.isFinite(number))
+                {
+                    this.numbers++;
+                    this.minNumber = Math.min(this.minNumber, number);
+                    this.maxNumber = Math.max(this.maxNumber, number);
+                }
+            }
+        }
+
+        private boolean isNumeric()
+        {
+            return this.filled > 0 && this.numbers == this.filled;
+        }
+
+        public String getDistinct()
+        {
+            if (this.distinctOverflow)
+                return String.format("%,d+", DISTINCT_LIMIT);
+            return String.format("%,d", this.distinct.size());
+        }
+
+        public String getMin()
+        {
+            if (isNumeric())
+                return summaryText(org.json.JSONObject.numberToString(Double.valueOf(this.minNumber)));
+            return summaryText(this.minText);
+        }
+
+        public String getMax()
+        {
+            if (isNumeric())
+                return summaryText(org.json.JSONObject.numberToString(Double.valueOf(this.maxNumber)));
+            return summaryText(this.maxText);
+        }
+
+        private static String summaryText(String value)
+        {
+            if (value == null)
+                return "";
+            if (value.length() > SUMMARY_WIDTH)
+                value = value.substring(0, SUMMARY_WIDTH) + "...";
+            return StringEscapeUtils.escapeHtml4(value);
+        }
+    }
+}
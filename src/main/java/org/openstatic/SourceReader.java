@@ -0,0 +1,208 @@
+package org.openstatic;
+
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.json.*;
+
+/*
+    Reads one InputSource from start to finish, usually on a worker thread.
+
+    Everything the read produces (flattened rows, the column names in the order
+    this input first used them, raw records when they are needed) is kept here
+    until JSONRoller merges it back in input order, so the final table never
+    depends on which worker finished first.
+*/
+public class SourceReader implements Callable<SourceReader>
+{
+    private InputSource source;
+    private TableBuilder builder;
+    private JSONArray records;
+    private ColumnRegistry.Batch columnsSeen;
+    private long recordCount;
+
+    // builder may be null when no table is being built
+    public SourceReader(InputSource source, TableBuilder builder, boolean keepRecords)
+    {
+        this.source = source;
+        this.builder = builder;
+        if (keepRecords)
+            this.records = new JSONArray();
+        this.columnsSeen = new ColumnRegistry.Batch();
+    }
+
+    @Override
+    public SourceReader call()
+    {
+        this.columnsSeen.begin();
+        try
+        {
+            if (!this.source.isURL())
+                JSONRoller.logIt("Reading File: " + this.source.getName());
+            Path path = this.source.getPath();
+            if (path != null && !this.source.isCSV() && NDJSONChunk.isSplittable(path))
+            {
+                readNDJSONChunks(path);
+                JSONRoller.logIt("Finished reading JSON: " + this.source.getName());
+            } else {
+                try (Reader reader = this.source.openReader())
+                {
+                    if (this.source.isCSV())
+                    {
+                        readCSVRecords(reader);
+                    } else {
+                        readJSONRecords(new JSONRecordReader(reader));
+                        JSONRoller.logIt("Finished reading JSON: " + this.source.getName());
+                    }
+                }
+            }
+        } catch (Exception rfe) {
+            if (this.source.isURL())
+            {
+                System.err.println("Error reading: " + this.source.getName() + " (" + rfe.getLocalizedMessage() + ")");
+            } else {
+                JSONRoller.logIt("File Error: " + this.source.getName());
+            }
+            if (JSONRoller.isVerbose())
+                rfe.printStackTrace(System.err);
+        } finally {
+            this.columnsSeen.end();
+            Stats.flush();
+        }
+        return this;
+    }
+
+    public void readJSONRecords(JSONRecordReader reader) throws Exception
+    {
+        Object record;
+        while ((record = reader.next()) != null)
+            accept(record);
+    }
+
+    // Parse a large NDJSON file slice by slice on the shared pool, merging the slices back in file order
+    public void readNDJSONChunks(Path path) throws Exception
+    {
+        ForkJoinPool pool = NDJSONChunk.pool();
+        ArrayDeque<Future<NDJSONChunk>> inFlight = new ArrayDeque<Future<NDJSONChunk>>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            long position = 0;
+            int chunks = 0;
+            int window = pool.getParallelism() * 2;
+            while (position < size || !inFlight.isEmpty())
+            {
+                while (position < size && inFlight.size() < window)
+                {
+                    long end = NDJSONChunk.nextLineStart(channel, position + NDJSONChunk.CHUNK_SIZE);
+                    TableBuilder partial = (this.builder != null) ? this.builder.newPartial(window) : null;
+                    inFlight.add(pool.submit(new NDJSONChunk(channel, position, end, partial, this.records != null)));
+                    position = end;
+                    chunks++;
+                }
+                NDJSONChunk chunk;
+                try
+                {
+                    chunk = inFlight.poll().get();
+                } catch (ExecutionException ee) {
+                    throw (ee.getCause() instanceof Exception) ? (Exception) ee.getCause() : ee;
+                }
+                this.recordCount += chunk.getRecordCount();
+                if (this.records != null)
+                    chunk.getRecords().forEach((record) -> this.records.put(record));
+                if (this.builder != null)
+                    this.builder.merge(chunk.getBuilder(), chunk.getColumnsSeen());
+                else
+                    JSONRoller.registerColumns(chunk.getColumnsSeen());
+            }
+            JSONRoller.logIt("Parsed " + this.source.getName() + " in " + String.valueOf(chunks) + " slices");
+        } finally {
+            inFlight.forEach((future) -> future.cancel(true));
+        }
+    }
+
+    public void readCSVRecords(Reader csvReader)
+    {
+        String name = this.source.getName();
+        try (CSVRecordReader reader = new CSVRecordReader(csvReader, JSONRoller.getCSVSeparator(), JSONRoller.getMultilineLimit()))
+        {
+            String[] columns = reader.getHeader();
+            if (columns == null)
+            {
+                JSONRoller.logIt("Empty CSV: " + name);
+                return;
+            }
+            JSONRoller.registerLeadingColumns(Arrays.asList(columns));
+            String[] row;
+            while ((row = reader.nextRow()) != null)
+            {
+                try
+                {
+                    if (this.builder != null && this.records == null)
+                    {
+                        // nothing needs the record as JSON, keep the row as it is
+                        this.builder.addFlat(columns, row);
+                        this.recordCount++;
+                    } else {
+                        accept(CSVRecordReader.toJSONObject(columns, row));
+                    }
+                } catch (Exception insertFailure) {
+                    JSONRoller.logIt("Bad Row (" + insertFailure.getLocalizedMessage() + "): " + new JSONArray(row).toString());
+                }
+            }
+            JSONRoller.logIt("Finished reading CSV: " + name  + " " + String.valueOf(reader.getRowNumber()) + " rows");
+        } catch (Exception e) {
+            System.err.println("Error reading: " + name);
+            e.printStackTrace(System.err);
+        }
+    }
+
+    public void accept(Object record) throws Exception
+    {
+        this.recordCount++;
+        if (this.records != null)
+            this.records.put(record);
+        if (this.builder != null)
+            this.builder.add(record);
+    }
+
+    public InputSource getSource()
+    {
+        return this.source;
+    }
+
+    public TableBuilder getBuilder()
+    {
+        return this.builder;
+    }
+
+    public JSONArray getRecords()
+    {
+        return this.records;
+    }
+
+    public Collection<String> getColumnsSeen()
+    {
+        return this.columnsSeen.getNames();
+    }
+
+    // The CSV header columns, in header order
+    public Collection<String> getLeadingColumnsSeen()
+    {
+        return this.columnsSeen.getLeadingNames();
+    }
+
+    public long getRecordCount()
+    {
+        return this.recordCount;
+    }
+}
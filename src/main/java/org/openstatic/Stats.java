@@ -0,0 +1,471 @@
+package org.openstatic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.*;
+
+/*
+    Time, CPU, allocation, record and byte counts per stage of a run, for --stats.
+
+    Code marks a stage with start() / stop(). Stages can nest (flattening a row
+    while streaming calls the writers for example), time is only ever charged
+    to the innermost running stage so nothing is counted twice. Times are
+    summed over every thread that worked on a stage, so with several threads
+    a stage can show more time than the run took.
+
+    Only System.nanoTime() is read on every start() / stop(). The thread's CPU
+    and allocation counters are read about every SAMPLE_NANOS and at the end
+    of each batch of work (flush()), and what they moved by is split between
+    the stages that ran since in proportion to their time. CPU and allocation
+    per stage are an estimate, their totals are not.
+
+    When --stats isn't given every call here returns straight away. --progress
+    only turns the record and byte counters on, which is cheap enough to
+    leave on for hours, the clocks stay off.
+*/
+public class Stats
+{
+    private static boolean enabled;
+    private static boolean counting;
+    private static ArrayList<Stage> stages = new ArrayList<Stage>();
+    private static final ThreadLocal<Clock> clocks = ThreadLocal.withInitial(() -> new Clock());
+
+    public static final Stage READ = stage("read");
+    public static final Stage PARSE = stage("parse");
+    public static final Stage PIVOT = stage("pivot");
+    public static final Stage FILTER = stage("filter");
+    public static final Stage FLATTEN = stage("flatten");
+
+    public static void enable()
+    {
+        Stats.enabled = true;
+        Stats.counting = true;
+    }
+
+    // Count records and bytes without timing anything (for --progress)
+    public static void enableCounters()
+    {
+        Stats.counting = true;
+    }
+
+    public static boolean isEnabled()
+    {
+        return Stats.enabled;
+    }
+
+    // Read this thread's CPU and allocation counters now, call when a thread finishes a batch of work
+    public static void flush()
+    {
+        if (Stats.enabled)
+            Stats.clocks.get().sample(System.nanoTime());
+    }
+
+    // The stage with this name, created if it doesn't exist yet (one per output writer)
+    public static synchronized Stage stage(String name)
+    {
+        for (Stage stage : Stats.stages)
+        {
+            if (stage.name.equals(name))
+                return stage;
+        }
+        Stage stage = new Stage(name);
+        Stats.stages.add(stage);
+        return stage;
+    }
+
+    public static synchronized List<Stage> getStages()
+    {
+        return new ArrayList<Stage>(Stats.stages);
+    }
+
+    // Human readable table, elapsedMillis is the wall time of the whole run
+    public static synchronized void printText(PrintStream out, long elapsedMillis)
+    {
+        flush();
+        out.println(String.format("%-15s %10s %10s %10s %12s %12s %14s", "Stage", "Time ms", "CPU ms", "Alloc MB", "Records", "Records/s", "Bytes"));
+        for (Stage stage : Stats.stages)
+        {
+            if (!stage.isUsed())
+                continue;
+            out.println(String.format("%-15s %10d %10d %10s %12d %12s %14d",
+                                      stage.name,
+                                      stage.getWallNanos() / 1000000L,
+                                      stage.getCpuNanos() / 1000000L,
+                                      (stage.getAllocatedBytes() < 0) ? "n/a" : String.format("%.1f", stage.getAllocatedBytes() / (1024.0 * 1024.0)),
+                                      stage.getRecords(),
+                                      String.format("%.0f", stage.getRecordsPerSecond()),
+                                      stage.getBytes()));
+        }
+        out.println(String.format("Elapsed: %d ms, process CPU: %d ms", elapsedMillis, processCpuNanos() / 1000000L));
+        out.flush();
+    }
+
+    public static synchronized void printJSON(PrintStream out, long elapsedMillis)
+    {
+        flush();
+        JSONArray stageArray = new JSONArray();
+        for (Stage stage : Stats.stages)
+        {
+            if (!stage.isUsed())
+                continue;
+            JSONObject jo = new JSONObject();
+            jo.put("stage", stage.name);
+            jo.put("wallMillis", stage.getWallNanos() / 1000000L);
+            jo.put("cpuMillis", stage.getCpuNanos() / 1000000L);
+            jo.put("allocatedBytes", stage.getAllocatedBytes());
+            jo.put("records", stage.getRecords());
+            jo.put("recordsPerSecond", Math.round(stage.getRecordsPerSecond()));
+            jo.put("bytes", stage.getBytes());
+            stageArray.put(jo);
+        }
+        JSONObject report = new JSONObject();
+        report.put("elapsedMillis", elapsedMillis);
+        report.put("processCpuMillis", processCpuNanos() / 1000000L);
+        report.put("stages", stageArray);
+        out.println(report.toString());
+        out.flush();
+    }
+
+    private static long processCpuNanos()
+    {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        return -1;
+    }
+
+    public static class Stage
+    {
+        private String name;
+        private LongAdder wallNanos;
+        private LongAdder cpuNanos;
+        private LongAdder allocatedBytes;
+        private LongAdder records;
+        private LongAdder bytes;
+
+        private Stage(String name)
+        {
+            this.name = name;
+            this.wallNanos = new LongAdder();
+            this.cpuNanos = new LongAdder();
+            this.allocatedBytes = new LongAdder();
+            this.records = new LongAdder();
+            this.bytes = new LongAdder();
+        }
+
+        // Everything the current thread does from here on counts for this stage until stop()
+        public void start()
+        {
+            if (Stats.enabled)
+                Stats.clocks.get().push(this);
+        }
+
+        // Back to whatever stage was running before start()
+        public void stop()
+        {
+            if (Stats.enabled)
+                Stats.clocks.get().pop();
+        }
+
+        public void countRecords(long count)
+        {
+            if (Stats.counting)
+                this.records.add(count);
+        }
+
+        public void countBytes(long count)
+        {
+            if (Stats.counting)
+                this.bytes.add(count);
+        }
+
+        // An input stream whose reads count as this stage, returned as is without --stats or --progress
+        public InputStream wrap(InputStream in)
+        {
+            if (!Stats.counting)
+                return in;
+            Stage stage = this;
+            return new InputStream()
+            {
+                @Override
+                public int read() throws IOException
+                {
+                    stage.start();
+                    try
+                    {
+                        int b = in.read();
+                        if (b >= 0)
+                            stage.countBytes(1);
+                        return b;
+                    } finally {
+                        stage.stop();
+                    }
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException
+                {
+                    stage.start();
+                    try
+                    {
+                        int read = in.read(buffer, offset, length);
+                        if (read > 0)
+                            stage.countBytes(read);
+                        return read;
+                    } finally {
+                        stage.stop();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    in.close();
+                }
+            };
+        }
+
+        public ReadableByteChannel wrap(ReadableByteChannel channel)
+        {
+            if (!Stats.counting)
+                return channel;
+            Stage stage = this;
+            return new ReadableByteChannel()
+            {
+                @Override
+                public int read(ByteBuffer buffer) throws IOException
+                {
+                    stage.start();
+                    try
+                    {
+                        int read = channel.read(buffer);
+                        if (read > 0)
+                            stage.countBytes(read);
+                        return read;
+                    } finally {
+                        stage.stop();
+                    }
+                }
+
+                @Override
+                public boolean isOpen()
+                {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    channel.close();
+                }
+            };
+        }
+
+        // A writer whose calls count as this stage, one record per row
+        public TableWriter wrap(TableWriter writer)
+        {
+            if (!Stats.counting)
+                return writer;
+            Stage stage = this;
+            return new TableWriter()
+            {
+                @Override
+                public void writeHeader(String[] columns) throws IOException
+                {
+                    stage.start();
+                    try
+                    {
+                        writer.writeHeader(columns);
+                    } finally {
+                        stage.stop();
+                    }
+                }
+
+                @Override
+                public void writeRow(String[] row) throws IOException
+                {
+                    stage.start();
+                    try
+                    {
+                        writer.writeRow(row);
+                        stage.countRecords(1);
+                    } finally {
+                        stage.stop();
+                    }
+                }
+
+                @Override
+                public void finish() throws IOException
+                {
+                    stage.start();
+                    try
+                    {
+                        writer.finish();
+                    } finally {
+                        stage.stop();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    stage.start();
+                    try
+                    {
+                        writer.close();
+                    } finally {
+                        stage.stop();
+                    }
+                }
+            };
+        }
+
+        public String getName()
+        {
+            return this.name;
+        }
+
+        public long getWallNanos()
+        {
+            return this.wallNanos.sum();
+        }
+
+        public long getCpuNanos()
+        {
+            return this.cpuNanos.sum();
+        }
+
+        // -1 when the JVM can't measure allocation
+        public long getAllocatedBytes()
+        {
+            return Clock.allocationSupported ? this.allocatedBytes.sum() : -1;
+        }
+
+        public long getRecords()
+        {
+            return this.records.sum();
+        }
+
+        public long getBytes()
+        {
+            return this.bytes.sum();
+        }
+
+        // Records over the stage's own time
+        public double getRecordsPerSecond()
+        {
+            long wall = getWallNanos();
+            return (wall > 0) ? getRecords() * 1000000000.0 / wall : 0;
+        }
+
+        private boolean isUsed()
+        {
+            return getWallNanos() > 0 || getRecords() > 0 || getBytes() > 0;
+        }
+    }
+
+    // The stages running on one thread, innermost last
+    private static class Clock
+    {
+        private static final long SAMPLE_NANOS = 10000000L;
+
+        private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private static final boolean cpuSupported = threads.isCurrentThreadCpuTimeSupported();
+        private static final boolean allocationSupported = (threads instanceof com.sun.management.ThreadMXBean) && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+
+        private Stage[] running = new Stage[8];
+        private int depth;
+        private long lastWall;
+        // the stages that ran since the counters were last read, and their time
+        private Stage[] sampled = new Stage[8];
+        private long[] sampledWall = new long[8];
+        private int sampledCount;
+        private long sampleWall;
+        private long sampleCpu;
+        private long sampleAllocated;
+
+        public void push(Stage stage)
+        {
+            charge();
+            if (this.depth == this.running.length)
+                this.running = Arrays.copyOf(this.running, this.depth * 2);
+            this.running[this.depth++] = stage;
+        }
+
+        public void pop()
+        {
+            charge();
+            if (this.depth > 0)
+                this.running[--this.depth] = null;
+        }
+
+        // Give the time since the last push or pop to the stage that was running
+        private void charge()
+        {
+            long wall = System.nanoTime();
+            if (this.depth > 0)
+            {
+                Stage stage = this.running[this.depth - 1];
+                long spent = wall - this.lastWall;
+                stage.wallNanos.add(spent);
+                ran(stage, spent);
+            }
+            this.lastWall = wall;
+            if (wall - this.sampleWall >= SAMPLE_NANOS)
+                sample(wall);
+        }
+
+        private void ran(Stage stage, long spent)
+        {
+            for (int i = 0; i < this.sampledCount; i++)
+            {
+                if (this.sampled[i] == stage)
+                {
+                    this.sampledWall[i] += spent;
+                    return;
+                }
+            }
+            if (this.sampledCount == this.sampled.length)
+            {
+                this.sampled = Arrays.copyOf(this.sampled, this.sampledCount * 2);
+                this.sampledWall = Arrays.copyOf(this.sampledWall, this.sampledCount * 2);
+            }
+            this.sampled[this.sampledCount] = stage;
+            this.sampledWall[this.sampledCount++] = spent;
+        }
+
+        // Split what the CPU and allocation counters moved by since the last read between the stages that ran
+        public void sample(long wall)
+        {
+            long cpu = cpuSupported ? threads.getCurrentThreadCpuTime() : 0;
+            long allocated = allocationSupported ? ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes() : 0;
+            long total = 0;
+            for (int i = 0; i < this.sampledCount; i++)
+                total += this.sampledWall[i];
+            for (int i = 0; i < this.sampledCount; i++)
+            {
+                if (total > 0)
+                {
+                    double share = (double) this.sampledWall[i] / total;
+                    this.sampled[i].cpuNanos.add(Math.round((cpu - this.sampleCpu) * share));
+                    this.sampled[i].allocatedBytes.add(Math.round((allocated - this.sampleAllocated) * share));
+                }
+                this.sampled[i] = null;
+            }
+            this.sampledCount = 0;
+            this.sampleWall = wall;
+            this.sampleCpu = cpu;
+            this.sampleAllocated = allocated;
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package org.openstatic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.json.*;
+
+/*
+    Receives records one at a time as the readers produce them, applies the
+    filters and flattens each record straight away so its JSON tree can be
+    thrown out. Only the flattened rows (in a RowStore, which can spill to disk)
+    and the column metadata are kept. Columns are numbered by a ColumnDictionary
+    so a row is only ever a set of (column id, value) pairs.
+
+    The first record is held back until a second one shows up, because a
+    lone root object has to be pivoted instead of flattened.
+*/
+public class TableBuilder
+{
+    private RowFilter filter;
+    private ColumnSelection selection;
+    private long memoryBudget;
+    private boolean scanOnly;
+    private Object firstRecord;
+    private long recordCount;
+    private long generatedCount;
+    private long outputCount;
+    private int rowIndex;
+    private boolean partial;
+    private String[] flatHeader;
+    private int[] flatTargets;
+    private int[] flatFilterColumns;
+    private int flatColumnsAdded;
+    private ColumnDictionary dictionary;
+    private RowFlattener flattener;
+    private BitSet columns;
+    private int[] headerPositions;
+    private RowStore rows;
+    private List<String> header;
+    private TableWriter writer;
+
+    public TableBuilder(RowFilter filter)
+    {
+        this(filter, 0);
+    }
+
+    // filter may be null to keep every row. memoryBudget is the number of bytes of rows
+    // to keep on the heap before spilling, zero for no limit
+    public TableBuilder(RowFilter filter, long memoryBudget)
+    {
+        this.filter = filter;
+        this.memoryBudget = memoryBudget;
+        this.dictionary = new ColumnDictionary();
+        this.flattener = new RowFlattener(this.dictionary);
+        this.columns = new BitSet();
+        this.rows = new RowStore(this.dictionary, memoryBudget);
+    }
+
+    // Only keep the columns picked by --columns, null to keep them all
+    public void selectColumns(ColumnSelection selection)
+    {
+        this.selection = selection;
+    }
+
+    // First pass of a streaming run: only collect the column names, drop the rows
+    public void scanOnly()
+    {
+        this.scanOnly = true;
+        this.rows = null;
+    }
+
+    // Second pass of a streaming run: write every row straight through using a known header
+    public void writeTo(List<String> header, TableWriter writer) throws Exception
+    {
+        this.rows = null;
+        this.header = header;
+        this.writer = writer;
+        writer.writeHeader(header.toArray(new String[header.size()]));
+    }
+
+    // An empty builder with the same settings, for reading part of the input on a worker thread.
+    // Its rows are always buffered so they can be merged back in input order. inFlight is how many
+    // partials can be holding rows at once. They split --memory-budget with this builder so the
+    // total stays within it, and when this builder writes rows straight out and has no budget of
+    // its own they share a slice of the heap instead of growing without limit.
+    public TableBuilder newPartial(int inFlight)
+    {
+        long partialBudget = 0;
+        if (this.memoryBudget > 0)
+            partialBudget = Math.max(1, this.memoryBudget / (inFlight + 1));
+        else if (this.writer != null)
+            partialBudget = Runtime.getRuntime().maxMemory() / (inFlight * 4L);
+        TableBuilder partial = new TableBuilder(this.filter, partialBudget);
+        partial.partial = true;
+        partial.dictionary.useLocalValues();
+        partial.selectColumns(this.selection);
+        if (this.scanOnly)
+            partial.scanOnly();
+        return partial;
+    }
+
+    // Fold a partial builder into this one. columnsSeen are the column names the partial's
+    // input registered, in the order it first used them.
+    public void merge(TableBuilder partial, Collection<String> columnsSeen) throws Exception
+    {
+        if (partial.firstRecord != null)
+        {
+            // a single record might still need to be pivoted, treat it like any other record
+            JSONRoller.registerColumns(columnsSeen);
+            add(partial.firstRecord);
+            return;
+        }
+        if (partial.recordCount > 0)
+            flushFirst();
+        // the partial numbered its plain values from its own first row, this table has rowIndex rows before them
+        JSONRoller.registerColumns(partial.renumberValues(columnsSeen, this.rowIndex, this.partial));
+        this.rowIndex += partial.rowIndex;
+        this.recordCount += partial.recordCount;
+        this.generatedCount += partial.generatedCount;
+        this.outputCount += partial.outputCount;
+        for (int id = partial.columns.nextSetBit(0); id >= 0; id = partial.columns.nextSetBit(id + 1))
+            this.columns.set(this.dictionary.id(partial.dictionary.name(id)));
+        if (partial.rows != null)
+        {
+            if (this.writer != null)
+                partial.rows.replay(this.header, this.writer);
+            else if (this.rows != null)
+                this.rows.appendAll(partial.rows);
+        }
+        partial.cleanUp();
+    }
+
+    /*
+        Give the partial's plain value columns their row in a table with offset rows before
+        this one, and return columnsSeen with the same names. keepLocal when merging into
+        another partial. Until the rows are known every plain value is kept, the ones
+        --columns doesn't pick are dropped here.
+    */
+    private Collection<String> renumberValues(Collection<String> columnsSeen, int offset, boolean keepLocal)
+    {
+        ArrayList<String> renamed = new ArrayList<String>(columnsSeen.size());
+        HashSet<String> valueParams = new HashSet<String>();
+        for (String name : columnsSeen)
+        {
+            String renumbered = ColumnDictionary.renumbered(name, offset, keepLocal);
+            if (renumbered == name || keepLocal || selectsValue(renumbered))
+                renamed.add(renumbered);
+            if (renumbered != name && renumbered.indexOf("].") >= 0)
+                valueParams.add(renumbered);
+        }
+        if (!keepLocal && !valueParams.isEmpty())
+            reorderValueParams(renamed, valueParams);
+        for (int id = this.columns.nextSetBit(0); id >= 0; id = this.columns.nextSetBit(id + 1))
+        {
+            String name = this.dictionary.name(id);
+            if (ColumnDictionary.isLocalValue(name) && !keepLocal && !selectsValue(ColumnDictionary.renumbered(name, offset, false)))
+                this.columns.clear(id);
+        }
+        this.dictionary.renumberValues(offset, keepLocal);
+        return renamed;
+    }
+
+    /*
+        The query string parameters of a plain value were registered in the order the
+        HashMap of their local names gave them, put them in the order their real names
+        would have had. Parameters of one value always follow each other.
+    */
+    private static void reorderValueParams(ArrayList<String> renamed, HashSet<String> valueParams)
+    {
+        int start = 0;
+        while (start < renamed.size())
+        {
+            String value = valueOfParam(renamed.get(start), valueParams);
+            int end = start + 1;
+            while (value != null && end < renamed.size() && value.equals(valueOfParam(renamed.get(end), valueParams)))
+                end++;
+            if (end - start > 1)
+            {
+                HashMap<String, String> params = new HashMap<String, String>();
+                for (String name : renamed.subList(start, end))
+                    params.put(name, "");
+                HashMap<String, String> leaf = new HashMap<String, String>();
+                leaf.putAll(params);
+                ArrayList<String> ordered = new ArrayList<String>(leaf.keySet());
+                for (int i = 0; i < ordered.size(); i++)
+                    renamed.set(start + i, ordered.get(i));
+            }
+            start = end;
+        }
+    }
+
+    // "[row]" for a query string parameter "[row].key" of a plain value, otherwise null
+    private static String valueOfParam(String name, HashSet<String> valueParams)
+    {
+        if (!valueParams.contains(name))
+            return null;
+        return name.substring(0, name.indexOf(']') + 1);
+    }
+
+    // Whether --columns picks a plain value column "[row]" or a query string column under it "[row].key"
+    private boolean selectsValue(String name)
+    {
+        if (this.selection == null)
+            return true;
+        int end = name.indexOf(']');
+        ColumnSelection.Node node = this.selection.getRoot().index(Integer.parseInt(name.substring(1, end)));
+        if (node == null || node.isAll() || end + 1 == name.length())
+            return (node != null && node.isAll());
+        ColumnSelection.Node param = node.child(name.substring(end + 2));
+        return (param != null && param.isAll());
+    }
+
+    public void add(Object record) throws Exception
+    {
+        this.recordCount++;
+        if (this.recordCount == 1)
+        {
+            this.firstRecord = record;
+        } else {
+            flushFirst();
+            addRow(record);
+        }
+    }
+
+    /*
+        Fast path for rows that are already flat (CSV input). The values stay in
+        a String[] by column position and go straight to the row store or writer
+        instead of through a JSONObject, the flatten code and a HashMap.
+
+        The slow path is still used for the first record (it may have to be
+        pivoted), for rows holding a query string (those get expanded into more
+        columns) and for headers that repeat a column name.
+    */
+    public void addFlat(String[] header, String[] row) throws Exception
+    {
+        if (row.length > header.length)
+            throw new IndexOutOfBoundsException("Index " + String.valueOf(header.length) + " out of bounds for length " + String.valueOf(header.length));
+        if (this.recordCount == 0 || !bindFlat(header) || hasQueryString(row))
+        {
+            add(CSVRecordReader.toJSONObject(header, row));
+            return;
+        }
+        this.recordCount++;
+        flushFirst();
+        this.generatedCount++;
+        if (this.filter != null)
+        {
+            Stats.FILTER.start();
+            boolean matched;
+            try
+            {
+                matched = this.filter.matches(row, this.flatFilterColumns);
+                Stats.FILTER.countRecords(1);
+            } finally {
+                Stats.FILTER.stop();
+            }
+            if (!matched)
+                return;
+        }
+        this.outputCount++;
+        Stats.FLATTEN.start();
+        try
+        {
+            storeFlat(header, row);
+            Stats.FLATTEN.countRecords(1);
+        } finally {
+            Stats.FLATTEN.stop();
+        }
+    }
+
+    private void storeFlat(String[] header, String[] row) throws Exception
+    {
+        this.rowIndex++;
+        // every column up to the row's width ends up in the table, even blank ones
+        while (this.flatColumnsAdded < row.length)
+        {
+            if (this.selection == null || this.selection.selects(header[this.flatColumnsAdded]))
+            {
+                int id = this.dictionary.id(header[this.flatColumnsAdded]);
+                this.dictionary.register(id);
+                this.columns.set(id);
+            }
+            this.flatColumnsAdded++;
+        }
+        if (this.writer != null)
+        {
+            String[] line = new String[this.header.size()];
+            Arrays.fill(line, "");
+            for (int i = 0; i < row.length; i++)
+            {
+                if (this.flatTargets[i] >= 0)
+                    line[this.flatTargets[i]] = row[i];
+            }
+            this.writer.writeRow(line);
+        } else if (this.rows != null) {
+            this.rows.addFlat(this.flatTargets, row);
+        }
+    }
+
+    // Work out where each column of a flat header goes, once per header. False if the header can't use the fast path.
+    private boolean bindFlat(String[] header)
+    {
+        if (header == this.flatHeader)
+            return (this.flatTargets != null);
+        this.flatHeader = header;
+        this.flatTargets = null;
+        this.flatColumnsAdded = 0;
+        if (new HashSet<String>(Arrays.asList(header)).size() < header.length)
+            return false;
+        int[] targets = new int[header.length];
+        for (int i = 0; i < header.length; i++)
+        {
+            if (this.selection != null && !this.selection.selects(header[i]))
+                targets[i] = -1;
+            else if (this.writer != null)
+                targets[i] = this.header.indexOf(header[i]);
+            else if (this.rows != null)
+                targets[i] = this.dictionary.id(header[i]);
+            else
+                targets[i] = -1;
+        }
+        if (this.filter != null)
+            this.flatFilterColumns = this.filter.indexColumns(header);
+        this.flatTargets = targets;
+        return true;
+    }
+
+    private static boolean hasQueryString(String[] row)
+    {
+        for (int i = 0; i < row.length; i++)
+        {
+            if (row[i].startsWith("?") && row[i].contains("="))
+                return true;
+        }
+        return false;
+    }
+
+    private void flushFirst() throws Exception
+    {
+        if (this.firstRecord != null)
+        {
+            Object record = this.firstRecord;
+            this.firstRecord = null;
+            addRow(record);
+        }
+    }
+
+    // Call once all the inputs have been read
+    public void finish() throws Exception
+    {
+        if (this.firstRecord != null)
+        {
+            Object record = this.firstRecord;
+            this.firstRecord = null;
+            if (record instanceof JSONObject)
+            {
+                JSONRoller.logIt("Singular Object Detected: performing table pivot");
+                Stats.PIVOT.start();
+                List<JSONObject> rows;
+                try
+                {
+                    rows = JSONRoller.pivotJSONObject(new JSONObject(), 0, (JSONObject) record);
+                    Stats.PIVOT.countRecords(rows.size());
+                } finally {
+                    Stats.PIVOT.stop();
+                }
+                for (JSONObject pivoted : rows)
+                    addRow(pivoted);
+            } else {
+                addRow(record);
+            }
+        }
+    }
+
+    private void addRow(Object value) throws Exception
+    {
+        this.generatedCount++;
+        if (this.filter != null && value instanceof JSONObject)
+        {
+            Stats.FILTER.start();
+            boolean matched;
+            try
+            {
+                matched = this.filter.matches((JSONObject) value);
+                Stats.FILTER.countRecords(1);
+            } finally {
+                Stats.FILTER.stop();
+            }
+            if (!matched)
+                return;
+        }
+        this.outputCount++;
+        Stats.FLATTEN.start();
+        try
+        {
+            storeRow(value);
+            Stats.FLATTEN.countRecords(1);
+        } finally {
+            Stats.FLATTEN.stop();
+        }
+    }
+
+    private void storeRow(Object value) throws Exception
+    {
+        ColumnSelection.Node selection = (this.selection == null) ? null : this.selection.getRoot();
+        // a partial can't tell which plain values --columns picks until it knows their rows, see renumberValues()
+        if (this.partial && !(value instanceof JSONObject) && !(value instanceof JSONArray))
+            selection = null;
+        this.flattener.flatten(value, this.rowIndex, selection);
+        this.rowIndex++;
+        int[] ids = this.flattener.getIds();
+        String[] values = this.flattener.getValues();
+        int pairs = this.flattener.getPairs();
+        for (int p = 0; p < pairs; p++)
+            this.columns.set(ids[p]);
+        if (this.writer != null)
+        {
+            String[] line = new String[this.header.size()];
+            Arrays.fill(line, "");
+            for (int p = 0; p < pairs; p++)
+            {
+                int position = headerPosition(ids[p]);
+                if (position >= 0)
+                    line[position] = values[p];
+            }
+            this.writer.writeRow(line);
+        } else if (this.rows != null) {
+            this.rows.add(ids, values, pairs);
+        }
+    }
+
+    // Where a column goes in the known header of a streaming write, -1 if it isn't there
+    private int headerPosition(int id)
+    {
+        if (this.headerPositions == null || id >= this.headerPositions.length)
+        {
+            int known = (this.headerPositions == null) ? 0 : this.headerPositions.length;
+            int[] grown = Arrays.copyOf((this.headerPositions == null) ? new int[0] : this.headerPositions, Math.max(id + 1, known * 2));
+            for (int i = known; i < grown.length; i++)
+                grown[i] = -2;
+            this.headerPositions = grown;
+        }
+        if (this.headerPositions[id] == -2)
+            this.headerPositions[id] = this.header.indexOf(this.dictionary.name(id));
+        return this.headerPositions[id];
+    }
+
+    public RowFilter getFilter()
+    {
+        return this.filter;
+    }
+
+    public ColumnSelection getColumnSelection()
+    {
+        return this.selection;
+    }
+
+    public long getMemoryBudget()
+    {
+        return this.memoryBudget;
+    }
+
+    // Number of records handed to add() by the readers
+    public long getRecordCount()
+    {
+        return this.recordCount;
+    }
+
+    // Number of rows produced (after pivoting) before filters were applied
+    public long getGeneratedCount()
+    {
+        return this.generatedCount;
+    }
+
+    public long getOutputCount()
+    {
+        return this.outputCount;
+    }
+
+    public List<String> getOrderedColumns()
+    {
+        HashSet<String> names = new HashSet<String>();
+        for (int id = this.columns.nextSetBit(0); id >= 0; id = this.columns.nextSetBit(id + 1))
+            names.add(this.dictionary.name(id));
+        return JSONRoller.orderedColumns(names);
+    }
+
+    // Write the header and every buffered row to the writer
+    public void replay(TableWriter writer) throws Exception
+    {
+        List<String> orderedKeys = getOrderedColumns();
+        writer.writeHeader(orderedKeys.toArray(new String[orderedKeys.size()]));
+        this.rows.replay(orderedKeys, writer);
+        writer.finish();
+    }
+
+    // Release the spill file (if any) once the table has been written
+    public void cleanUp()
+    {
+        if (this.rows != null)
+            this.rows.cleanUp();
+    }
+}
@@ -0,0 +1,24 @@
+package org.openstatic;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/*
+    Receives a table one row at a time. writeHeader() is always called first,
+    then writeRow() for each row and finally finish() once there is nothing
+    left to write. close() releases the underlying stream.
+*/
+public interface TableWriter extends Closeable
+{
+    public void writeHeader(String[] columns) throws IOException;
+
+    public void writeRow(String[] row) throws IOException;
+
+    public void finish() throws IOException;
+
+    // Chars written to this writer that it is still holding on to, not yet passed on to its output
+    public default int getPendingChars()
+    {
+        return 0;
+    }
+}
@@ -0,0 +1,258 @@
+package org.openstatic;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+    A Writer that encodes UTF-8 itself into one large buffer and hands it to
+    a FileChannel (or the channel of STDOUT) through a direct ByteBuffer of
+    the same size. This replaces PrintWriter -> BufferedWriter ->
+    OutputStreamWriter and their 8 KB buffers, so a big export is written in
+    a few large chunks instead of being copied through three layers. The
+    encoding goes into a plain byte[] because that is much quicker per char
+    than ByteBuffer.put(), the direct buffer is then filled with one copy.
+
+    Buffers of the default size are pooled (up to MAX_POOLED of them), a run
+    that opens several outputs (or a new file per chunk) reuses them instead
+    of allocating more direct memory.
+
+    Unpaired surrogates are written as '?', the same as OutputStreamWriter.
+*/
+public class UTF8ChannelWriter extends Writer
+{
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    public static final int MAX_POOLED = 8;
+
+    private static final ArrayBlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<ByteBuffer>(MAX_POOLED);
+
+    private WritableByteChannel channel;
+    private boolean stdout;
+    private byte[] bytes;
+    private int used;
+    private long drained;
+    private ByteBuffer buffer;
+    private Stats.Stage stage;
+    private char highSurrogate;
+
+    private UTF8ChannelWriter(WritableByteChannel channel, boolean stdout, int bufferSize, Stats.Stage stage)
+    {
+        this.channel = channel;
+        this.stdout = stdout;
+        this.buffer = takeBuffer(Math.max(bufferSize, 16));
+        this.bytes = new byte[this.buffer.capacity()];
+        this.stage = stage;
+    }
+
+    // Creates (or truncates) the file. stage counts the bytes written for --stats, may be null
+    public static UTF8ChannelWriter file(Path path, int bufferSize, Stats.Stage stage) throws IOException
+    {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new UTF8ChannelWriter(channel, false, bufferSize, stage);
+    }
+
+    public static UTF8ChannelWriter stdout(int bufferSize, Stats.Stage stage)
+    {
+        // anything already printed has to come out first
+        System.out.flush();
+        FileChannel channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        return new UTF8ChannelWriter(channel, true, bufferSize, stage);
+    }
+
+    // Writes to any channel, which is closed with the writer
+    public static UTF8ChannelWriter channel(WritableByteChannel channel, int bufferSize, Stats.Stage stage)
+    {
+        return new UTF8ChannelWriter(channel, false, bufferSize, stage);
+    }
+
+    private static ByteBuffer takeBuffer(int size)
+    {
+        ByteBuffer pooled = (size == DEFAULT_BUFFER_SIZE) ? UTF8ChannelWriter.pool.poll() : null;
+        if (pooled != null)
+        {
+            pooled.clear();
+            return pooled;
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    // Only default sized buffers are kept, a full pool lets the buffer go
+    private static void giveBuffer(ByteBuffer buffer)
+    {
+        if (buffer.capacity() == DEFAULT_BUFFER_SIZE)
+            UTF8ChannelWriter.pool.offer(buffer);
+    }
+
+    @Override
+    public void write(int c) throws IOException
+    {
+        ensureOpen();
+        encode((char) c);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException
+    {
+        ensureOpen();
+        int i = offset;
+        int end = offset + length;
+        while (i < end)
+        {
+            // plain ASCII is by far the most common, copy runs of it in a tight loop
+            byte[] bytes = this.bytes;
+            int pos = this.used;
+            if (this.highSurrogate == 0)
+            {
+                int stop = Math.min(end, i + bytes.length - pos);
+                while (i < stop)
+                {
+                    char c = chars[i];
+                    if (c >= 0x80)
+                        break;
+                    bytes[pos++] = (byte) c;
+                    i++;
+                }
+                this.used = pos;
+            }
+            if (i < end)
+                encode(chars[i++]);
+        }
+    }
+
+    @Override
+    public void write(String text, int offset, int length) throws IOException
+    {
+        ensureOpen();
+        int i = offset;
+        int end = offset + length;
+        while (i < end)
+        {
+            byte[] bytes = this.bytes;
+            int pos = this.used;
+            if (this.highSurrogate == 0)
+            {
+                int stop = Math.min(end, i + bytes.length - pos);
+                while (i < stop)
+                {
+                    char c = text.charAt(i);
+                    if (c >= 0x80)
+                        break;
+                    bytes[pos++] = (byte) c;
+                    i++;
+                }
+                this.used = pos;
+            }
+            if (i < end)
+                encode(text.charAt(i++));
+        }
+    }
+
+    private void encode(char c) throws IOException
+    {
+        if (this.used + 4 > this.bytes.length)
+            drain();
+        byte[] bytes = this.bytes;
+        int pos = this.used;
+        if (this.highSurrogate != 0)
+        {
+            char high = this.highSurrogate;
+            this.highSurrogate = 0;
+            if (Character.isLowSurrogate(c))
+            {
+                int cp = Character.toCodePoint(high, c);
+                bytes[pos++] = (byte) (0xF0 | (cp >> 18));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (cp & 0x3F));
+                this.used = pos;
+                return;
+            }
+            // four bytes of room covers this '?' and the char after it
+            bytes[pos++] = (byte) '?';
+        }
+        if (c < 0x80)
+        {
+            bytes[pos++] = (byte) c;
+        } else if (c < 0x800) {
+            bytes[pos++] = (byte) (0xC0 | (c >> 6));
+            bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            this.highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            bytes[pos++] = (byte) '?';
+        } else {
+            bytes[pos++] = (byte) (0xE0 | (c >> 12));
+            bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+        }
+        this.used = pos;
+    }
+
+    // Copy the encoded bytes into the direct buffer in one go and write them out
+    private void drain() throws IOException
+    {
+        if (this.used == 0)
+            return;
+        this.buffer.clear();
+        this.buffer.put(this.bytes, 0, this.used);
+        this.buffer.flip();
+        while (this.buffer.hasRemaining())
+            this.channel.write(this.buffer);
+        if (this.stage != null)
+            this.stage.countBytes(this.used);
+        this.drained += this.used;
+        this.used = 0;
+    }
+
+    // Bytes written so far, including those still in the buffer
+    public long getBytesWritten()
+    {
+        return this.drained + this.used;
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (this.buffer == null)
+            throw new IOException("Stream closed");
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        ensureOpen();
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (this.buffer == null)
+            return;
+        try
+        {
+            if (this.highSurrogate != 0)
+            {
+                this.highSurrogate = 0;
+                encode('?');
+            }
+            drain();
+        } finally {
+            giveBuffer(this.buffer);
+            this.buffer = null;
+            this.bytes = null;
+            // closing the table on STDOUT closes it for good, as the old PrintWriter did. The
+            // channel is on the same descriptor, so System.out is the only one closed
+            if (this.stdout)
+                System.out.close();
+            else
+                this.channel.close();
+        }
+    }
+}
@@ -0,0 +1,599 @@
+package org.openstatic;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.text.StringEscapeUtils;
+
+/*
+    The interactive HTML report for tables too big for one <tr> per row.
+
+    The rows are not part of the page, they follow it as <script> blocks of
+    ROWS_PER_SCRIPT rows each, so nothing is kept here but the block being
+    written and the browser can load the report while it is still arriving.
+    The page keeps every column as a typed array of codes into a list of the
+    distinct values in that column and only builds <tr> elements for the rows
+    that can be seen (a virtual scroll).
+
+    Sorting ranks the distinct values of a column once and then orders the
+    rows with a counting sort on those ranks. Filters are checked against the
+    distinct values too, a row passes when the code of each filtered column
+    is marked, so neither one touches the DOM. Columns with more than
+    SELECT_LIMIT distinct values get a "contains" text box instead of a
+    drop down list.
+*/
+public class VirtualHTMLTableWriter implements TableWriter
+{
+    public static final int ROWS_PER_SCRIPT = 1000;
+    public static final int SELECT_LIMIT = 500;
+
+    private String tableName;
+    private PrintWriter pw;
+    private StringBuilder sb;
+    private int scriptRows;
+
+    public VirtualHTMLTableWriter(String tableName, PrintWriter pw)
+    {
+        this.tableName = tableName;
+        this.pw = pw;
+        this.sb = new StringBuilder();
+    }
+
+    @Override
+    public void writeHeader(String[] columns) throws IOException
+    {
+        this.pw.println("<!-- Generated By JSON-Roller v" + JSONRoller.VERSION + " https://openstatic.org/projects/json-roller/ -->");
+        this.pw.println(PAGE_START.replace("SELECT_LIMIT", String.valueOf(SELECT_LIMIT)));
+        this.pw.println("<div class=\"headerDiv\"><span id=\"loadingMSG\">Loading... </span>" + StringEscapeUtils.escapeHtml4(this.tableName) + " <span id=\"rowInfo\" style=\"font-size: 18px;\"></span> <button id=\"exportCsvButton\" style=\"display: none;\" onclick=\"exportCSV()\">Export (Filtered and Sorted) CSV</button><button style=\"display: none;\" id=\"showImageButton\" onclick=\"toggleImages()\">Show Images</button><a href=\"https://openstatic.org/projects/json-roller/\" target=\"_blank\" style=\"float: right; font-size: 18px; text-decoration: none;\">Generated by json-roller</a></div>");
+        this.pw.println("<div id=\"viewport\"><table id=\"data\">");
+        this.pw.println("<thead><tr>");
+        this.pw.println(Stream.of(columns).map(OutputData::makeColumnHeader).collect(Collectors.joining()));
+        this.pw.println("</tr></thead><tbody id=\"rowsBody\"></tbody></table></div>");
+        this.sb.setLength(0);
+        this.sb.append("<script>init(");
+        appendArray(columns);
+        this.sb.append(");</script>");
+        this.pw.println(this.sb);
+    }
+
+    @Override
+    public void writeRow(String[] row) throws IOException
+    {
+        this.sb.setLength(0);
+        this.sb.append((this.scriptRows == 0) ? "<script>addRows([" : ",");
+        appendArray(row);
+        this.pw.append(this.sb);
+        if (++this.scriptRows == ROWS_PER_SCRIPT)
+            endScript();
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        endScript();
+        this.pw.println("<script>dataDone();</script>");
+        this.pw.println("</body></html>");
+        this.pw.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.pw.close();
+    }
+
+    private void endScript()
+    {
+        if (this.scriptRows == 0)
+            return;
+        this.pw.println("]);</script>");
+        this.scriptRows = 0;
+    }
+
+    private void appendArray(String[] cells)
+    {
+        this.sb.append('[');
+        for (int i = 0; i < cells.length; i++)
+        {
+            if (i > 0)
+                this.sb.append(',');
+            quote(cells[i]);
+        }
+        this.sb.append(']');
+    }
+
+    // A JavaScript string that is also safe inside a <script> element, '<' is never written as is
+    private void quote(String text)
+    {
+        StringBuilder sb = this.sb;
+        sb.append('"');
+        int length = text.length();
+        for (int i = 0; i < length; i++)
+        {
+            char c = text.charAt(i);
+            switch (c)
+            {
+                case '\\':
+                case '"':
+                    sb.append('\\');
+                    sb.append(c);
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < ' ' || c == '<' || c == '\u2028' || c == '\u2029')
+                    {
+                        String hex = Integer.toHexString(c);
+                        sb.append("\\u");
+                        for (int p = hex.length(); p < 4; p++)
+                            sb.append('0');
+                        sb.append(hex);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    private static final String PAGE_START = """
+        <html>
+        <head>
+        <meta charset="utf-8">
+        <script type="text/javascript">
+            var upTriangle = String.fromCharCode(9650);
+            var downTriangle = String.fromCharCode(9660);
+            var maxHeight = 10000000;
+            var columns = [];
+            var columnsTotal = 0;
+            var rowsTotal = 0;
+            var capacity = 0;
+            var codes = [];
+            var dictionary = [];
+            var lookup = [];
+            var order = new Uint32Array(0);
+            var view = new Uint32Array(0);
+            var sortColumn = -1;
+            var sortReverse = false;
+            var rowHeight = 34;
+            var imagesVisible = false;
+            var renderPending = false;
+
+            // the column names, called once before any rows
+            function init(names)
+            {
+                columns = names;
+                columnsTotal = names.length;
+                capacity = 1024;
+                for (var c = 0; c < columnsTotal; c++)
+                {
+                    codes.push(new Int32Array(capacity));
+                    dictionary.push([]);
+                    lookup.push(new Map());
+                }
+            }
+
+            // a block of rows, each value is stored as its index in the column's list of distinct values
+            function addRows(rows)
+            {
+                if (rowsTotal + rows.length > capacity)
+                {
+                    while (rowsTotal + rows.length > capacity)
+                        capacity *= 2;
+                    for (var c = 0; c < columnsTotal; c++)
+                    {
+                        var grown = new Int32Array(capacity);
+                        grown.set(codes[c]);
+                        codes[c] = grown;
+                    }
+                }
+                for (var r = 0; r < rows.length; r++)
+                {
+                    var row = rows[r];
+                    for (var c = 0; c < columnsTotal; c++)
+                    {
+                        var value = row[c];
+                        var code = lookup[c].get(value);
+                        if (code === undefined)
+                        {
+                            code = dictionary[c].length;
+                            dictionary[c].push(value);
+                            lookup[c].set(value, code);
+                        }
+                        codes[c][rowsTotal] = code;
+                    }
+                    rowsTotal++;
+                }
+                document.getElementById('rowInfo').textContent = '(' + rowsTotal.toLocaleString() + ' rows)';
+            }
+
+            // every row has arrived
+            function dataDone()
+            {
+                lookup = null;
+                order = new Uint32Array(rowsTotal);
+                for (var i = 0; i < rowsTotal; i++)
+                    order[i] = i;
+                createFilters();
+                var th = document.getElementById('data').tHead.rows[0].cells;
+                for (var c = 0; c < columnsTotal; c++) (function (c) {
+                    th[c].addEventListener('click', function () { sortTable(c); });
+                }(c));
+                var viewport = document.getElementById('viewport');
+                viewport.addEventListener('scroll', scheduleRender);
+                window.addEventListener('resize', scheduleRender);
+                if (hasImages())
+                    document.getElementById('showImageButton').style.display = 'inline-block';
+                document.getElementById('exportCsvButton').style.display = 'inline-block';
+                document.getElementById('loadingMSG').style.display = 'none';
+                applyFilters();
+            }
+
+            function createFilters()
+            {
+                var filterRow = document.createElement('tr');
+                for (var c = 0; c < columnsTotal; c++)
+                {
+                    var td = document.createElement('td');
+                    td.style.padding = '0px 0px 0px 0px';
+                    var filterEl;
+                    if (dictionary[c].length <= SELECT_LIMIT)
+                    {
+                        filterEl = document.createElement('select');
+                        filterEl.appendChild(new Option('', ''));
+                        var values = rankValues(c);
+                        for (var i = 0; i < values.length; i++)
+                            filterEl.appendChild(new Option((dictionary[c][values[i]] == '') ? '(empty)' : dictionary[c][values[i]], String(values[i])));
+                        filterEl.onchange = applyFilters;
+                    } else {
+                        filterEl = document.createElement('input');
+                        filterEl.type = 'text';
+                        filterEl.placeholder = 'contains';
+                        filterEl.oninput = applyFilters;
+                    }
+                    filterEl.style.width = '100%';
+                    filterEl.id = 'filter' + c;
+                    td.appendChild(filterEl);
+                    filterRow.appendChild(td);
+                }
+                document.getElementById('data').tHead.appendChild(filterRow);
+            }
+
+            // the distinct values of a column in sorted order, as codes
+            function rankValues(c)
+            {
+                var values = dictionary[c];
+                var collator = new Intl.Collator('en', {numeric: true});
+                var trimmed = values.map(function (v) { return v.trim(); });
+                var sorted = new Uint32Array(values.length);
+                for (var i = 0; i < sorted.length; i++)
+                    sorted[i] = i;
+                sorted.sort(function (a, b) { return collator.compare(trimmed[a], trimmed[b]); });
+                return sorted;
+            }
+
+            // order every row by one column: rank the distinct values, then a counting sort on the ranks
+            function sortTable(c)
+            {
+                sortReverse = (sortColumn == c) ? !sortReverse : false;
+                sortColumn = c;
+                var ranked = rankValues(c);
+                var distinct = ranked.length;
+                var rank = new Uint32Array(distinct);
+                for (var i = 0; i < distinct; i++)
+                    rank[ranked[i]] = sortReverse ? (distinct - 1 - i) : i;
+                var counts = new Uint32Array(distinct + 1);
+                var column = codes[c];
+                for (var r = 0; r < rowsTotal; r++)
+                    counts[rank[column[r]] + 1]++;
+                for (var i = 1; i <= distinct; i++)
+                    counts[i] += counts[i - 1];
+                for (var r = 0; r < rowsTotal; r++)
+                    order[counts[rank[column[r]]]++] = r;
+                var th = document.getElementById('data').tHead.rows[0].cells;
+                for (var i = 0; i < columnsTotal; i++)
+                {
+                    th[i].style.backgroundColor = '#808080';
+                    th[i].textContent = columns[i];
+                }
+                th[c].style.backgroundColor = '#04AA6D';
+                th[c].textContent = columns[c] + (sortReverse ? downTriangle : upTriangle);
+                applyFilters();
+            }
+
+            // rebuild the list of visible rows, a row passes when every filtered column's value is marked
+            function applyFilters()
+            {
+                var marks = [];
+                var filtered = [];
+                for (var c = 0; c < columnsTotal; c++)
+                {
+                    var filterEl = document.getElementById('filter' + c);
+                    if (filterEl.value == '')
+                        continue;
+                    var mark = new Uint8Array(dictionary[c].length);
+                    if (filterEl.tagName == 'SELECT')
+                    {
+                        mark[parseInt(filterEl.value)] = 1;
+                    } else {
+                        var needle = filterEl.value.toLowerCase();
+                        for (var d = 0; d < mark.length; d++)
+                        {
+                            if (dictionary[c][d].toLowerCase().indexOf(needle) >= 0)
+                                mark[d] = 1;
+                        }
+                    }
+                    marks.push(mark);
+                    filtered.push(codes[c]);
+                }
+                if (marks.length == 0)
+                {
+                    view = order;
+                } else {
+                    var kept = new Uint32Array(rowsTotal);
+                    var n = 0;
+                    for (var i = 0; i < rowsTotal; i++)
+                    {
+                        var r = order[i];
+                        var passes = true;
+                        for (var f = 0; f < marks.length; f++)
+                        {
+                            if (marks[f][filtered[f][r]] == 0)
+                            {
+                                passes = false;
+                                break;
+                            }
+                        }
+                        if (passes)
+                            kept[n++] = r;
+                    }
+                    view = kept.slice(0, n);
+                }
+                document.getElementById('viewport').scrollTop = 0;
+                updateRowInfo();
+                render();
+            }
+
+            function updateRowInfo()
+            {
+                if (view.length == rowsTotal)
+                    document.getElementById('rowInfo').textContent = '(' + rowsTotal.toLocaleString() + ' rows)';
+                else
+                    document.getElementById('rowInfo').textContent = '(' + view.length.toLocaleString() + ' / ' + rowsTotal.toLocaleString() + ' rows)';
+            }
+
+            function scheduleRender()
+            {
+                if (renderPending)
+                    return;
+                renderPending = true;
+                window.requestAnimationFrame(function () {
+                    renderPending = false;
+                    render();
+                });
+            }
+
+            // build <tr> elements for the rows in sight only, spacer rows stand in for the rest
+            function render()
+            {
+                var viewport = document.getElementById('viewport');
+                var visible = Math.ceil(viewport.clientHeight / rowHeight) + 2;
+                var total = view.length * rowHeight;
+                var height = Math.min(total, maxHeight);
+                var first, top;
+                if (height == total)
+                {
+                    first = Math.floor(viewport.scrollTop / rowHeight);
+                    top = first * rowHeight;
+                } else {
+                    // too tall for the browser, the scroll bar picks a place in the rows instead
+                    var scrollRange = Math.max(1, height - viewport.clientHeight);
+                    first = Math.floor(Math.min(1, viewport.scrollTop / scrollRange) * Math.max(0, view.length - visible + 2));
+                    top = viewport.scrollTop;
+                }
+                first = Math.max(0, Math.min(first, view.length - 1));
+                var last = Math.min(view.length, first + visible);
+                var bottom = Math.max(0, height - top - (last - first) * rowHeight);
+                var html = ['<tr style="height: ' + top + 'px;"></tr>'];
+                for (var i = first; i < last; i++)
+                {
+                    var r = view[i];
+                    html.push((i % 2 == 1) ? '<tr class="dataRow odd">' : '<tr class="dataRow">');
+                    for (var c = 0; c < columnsTotal; c++)
+                        html.push(makeCell(dictionary[c][codes[c][r]]));
+                    html.push('</tr>');
+                }
+                html.push('<tr style="height: ' + bottom + 'px;"></tr>');
+                var tbody = document.getElementById('rowsBody');
+                tbody.innerHTML = html.join('');
+                // the real row height depends on the fonts, measure it once rows are showing
+                if (last > first)
+                {
+                    var measured = tbody.rows[1].getBoundingClientRect().height;
+                    if (measured > 0 && Math.abs(measured - rowHeight) > 0.5)
+                    {
+                        rowHeight = measured;
+                        render();
+                    }
+                }
+            }
+
+            function escapeHTML(value)
+            {
+                return value.replace(/&/g, '&amp;').replace(/</g, '&lt;').replace(/>/g, '&gt;').replace(/"/g, '&quot;');
+            }
+
+            function isLink(lowerCase)
+            {
+                return lowerCase.startsWith('https://') || lowerCase.startsWith('http://');
+            }
+
+            function isImage(lowerCase)
+            {
+                return lowerCase.endsWith('.jpg') || lowerCase.endsWith('.png') || lowerCase.endsWith('.gif') || lowerCase.endsWith('.webp');
+            }
+
+            function makeCell(value)
+            {
+                var lowerCase = value.toLowerCase();
+                var text = escapeHTML(value);
+                if (isLink(lowerCase))
+                {
+                    var link = '<a target="_blank" href="' + text + '">' + text + '</a>';
+                    if (imagesVisible && isImage(lowerCase))
+                        return '<td><div class="cell" title="' + text + '"><img src="' + text + '" onerror="this.remove()"><br>' + link + '</div></td>';
+                    return '<td><div class="cell" title="' + text + '">' + link + '</div></td>';
+                }
+                return '<td><div class="cell" title="' + text + '">' + text + '</div></td>';
+            }
+
+            function hasImages()
+            {
+                for (var c = 0; c < columnsTotal; c++)
+                {
+                    for (var value of dictionary[c])
+                    {
+                        var lowerCase = value.toLowerCase();
+                        if (isLink(lowerCase) && isImage(lowerCase))
+                            return true;
+                    }
+                }
+                return false;
+            }
+
+            function toggleImages()
+            {
+                imagesVisible = !imagesVisible;
+                document.body.className = imagesVisible ? 'images' : '';
+                document.getElementById('showImageButton').textContent = imagesVisible ? 'Hide Images' : 'Show Images';
+                render();
+            }
+
+            function csvEscape(value)
+            {
+                if (value.trim() != '' && isFinite(value))
+                    return value;
+                return '"' + value.replace(/"/g, '""') + '"';
+            }
+
+            function exportCSV()
+            {
+                var lines = [columns.map(csvEscape).join(',')];
+                for (var i = 0; i < view.length; i++)
+                {
+                    var r = view[i];
+                    var cells = [];
+                    for (var c = 0; c < columnsTotal; c++)
+                        cells.push(csvEscape(dictionary[c][codes[c][r]]));
+                    lines.push(cells.join(','));
+                }
+                lines.push('');
+                var link = document.createElement('a');
+                link.href = URL.createObjectURL(new Blob([lines.join('\\n')], {type: 'text/csv;charset=utf-8'}));
+                link.download = 'data.csv';
+                document.body.appendChild(link);
+                link.click();
+                document.body.removeChild(link);
+            }
+            </script>
+            <style>
+                body
+                {
+                    margin: 0px;
+                }
+
+                table
+                {
+                    font-family: Arial, Helvetica, sans-serif;
+                    border-collapse: collapse;
+                    width: 100%;
+                    table-layout: fixed;
+                }
+
+                #viewport
+                {
+                    position: fixed;
+                    top: 64px;
+                    bottom: 0px;
+                    left: 0px;
+                    right: 0px;
+                    overflow-y: auto;
+                }
+
+                #data td, #data th
+                {
+                    border: 1px solid #ddd;
+                    padding: 8px;
+                }
+
+                #data thead
+                {
+                    position: sticky;
+                    top: 0px;
+                    background-color: white;
+                    z-index: 1;
+                }
+
+                #data tr.odd {background-color: #f2f2f2;}
+
+                #data tr.dataRow:hover {background-color: #ddd;}
+
+                #data th {
+                    padding-top: 12px;
+                    padding-bottom: 12px;
+                    text-align: left;
+                    cursor: pointer;
+                    background-color: #808080;
+                    color: white;
+                    overflow: hidden;
+                    text-overflow: ellipsis;
+                    white-space: nowrap;
+                }
+
+                .cell {
+                    height: 18px;
+                    line-height: 18px;
+                    overflow: hidden;
+                    text-overflow: ellipsis;
+                    white-space: nowrap;
+                }
+
+                body.images .cell {
+                    height: 150px;
+                }
+
+                img {
+                    max-height: 128px;
+                }
+
+                button {
+                    height: 32px;
+                    vertical-align: text-bottom;
+                }
+
+                .headerDiv {
+                    font-size: 32px;
+                    border: 1px black solid;
+                    padding: 4px 4px 4px 4px;
+                    width: 99%;
+                    margin-left: 4px;
+                    margin-right: 4px;
+                    position: fixed;
+                    top: 6px;
+                    left: 0px;
+                    background-color: white;
+                }
+            </style>
+        </head>
+        <body>
+        """;
+}